@@ -16,15 +16,16 @@
 
 package uk.digitalsquid.droidpad;
 
+import java.io.File;
 import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.UUID;
 
-import org.spongycastle.crypto.tls.TlsPSKIdentity;
-
 import uk.digitalsquid.droidpad.Pairing.DevicePair;
 import uk.digitalsquid.droidpad.buttons.Layout;
 import uk.digitalsquid.droidpad.buttons.ModeSpec;
-import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
@@ -38,7 +39,6 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.MulticastLock;
 import android.net.wifi.WifiManager.WifiLock;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
@@ -105,8 +105,8 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 	private ModeSpec spec = new ModeSpec();
 	private Calibration calibration;
 	
-	private Connection connection;
-	private SecureConnection secureConnection;
+	private ConnectionEngine engine;
+	private boolean accelRegistered, gyroRegistered, rotationVectorRegistered;
 	
 	private final Vec3 accelerometer = new Vec3();
 	/**
@@ -115,9 +115,23 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 	private final Vec3 rotation = new Vec3();
 	private final Vec3 rotationalVelocity = new Vec3();
 	/**
-	 * Rotation about the world's z axis, rather than the phone's.
+	 * The gyroscope's previous reading, for integrating
+	 */
+	private final Vec3 lastRotationalVelocity = new Vec3();
+	private final SensorRing sensorRing = new SensorRing();
+	private final SensorClock sensorClock = new SensorClock();
+	/**
+	 * What the engine reads, as the fields above are only for the sensor listener
+	 */
+	private final SensorHistory accelerometerHistory = new SensorHistory(3);
+	/**
+	 * The integrated rotation, then the rotation about the world's z axis
+	 */
+	private final SensorHistory gyroscopeHistory = new SensorHistory(4);
+	/**
+	 * Fuses the sensors to find rotation about the world's z axis, rather than the phone's.
 	 */
-	private float worldRotation;
+	private final OrientationFilter orientation = new OrientationFilter();
 	/**
 	 * Data which the user has inputed onscreen.
 	 */
@@ -168,54 +182,48 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 	
 	/**
 	 * Call this method when the user has chosen a mode to use. The mode that
-	 * then should be displayed will then be returned; most of the time the
-	 * mode the user chose will be returned, but in some cases the service
-	 * will override the user's choice (for example if a session is running
-	 * already).
+	 * then should be displayed will then be returned.
+	 * If the engine is already running it is kept, along with its connections,
+	 * and switched over to the new mode.
 	 * @param spec
 	 * @return
 	 */
 	public synchronized ModeSpec onModeChosen(ModeSpec spec) {
-		boolean closed = true;
-		if(connection != null) closed &= connection.attemptClose();
-		if(secureConnection != null) closed &= secureConnection.attemptClose();
-		if(closed) { // Closed idle connection successfully
-			this.spec = createNewConnection(spec);
+		if(engine != null) {
+			prepareSpec(spec);
+			registerSensors(spec);
+			engine.setSpec(spec);
+			this.spec = spec;
 			return spec;
-		} else { // Connection running, user can't change spec.
-			return this.spec;
 		}
+		this.spec = createNewConnection(spec);
+		return spec;
 	}
 	
-	@SuppressLint("NewApi")
-	private synchronized ModeSpec createNewConnection(ModeSpec newSpec) {
-		if(!locksLocked) {
-			wifiLock.acquire();
-			multicastLock.acquire();
-			locksLocked = true;
-		}
-		
-		// Load basic preferences (MINIMAL)
-		int interval = 20;
+	/**
+	 * Applies the preferences which affect a mode.
+	 */
+	private void prepareSpec(ModeSpec newSpec) {
 		boolean landscape = false;
 		try {
-			interval = Integer.valueOf(prefs.getString("updateinterval", "20")); // Using string as for some reason Android won't
 			landscape = prefs.getBoolean("orientation", false);
 		} catch (ClassCastException e) {
 			Log.e(TAG, "ERROR: Invalid preference", e);
 			Toast.makeText(this, "Incorrect preferences set, please check", Toast.LENGTH_LONG).show();
-		} catch (NumberFormatException e) {
-			Log.e(TAG, "ERROR: Invalid preference", e);
-			Toast.makeText(this, "Incorrect preferences set, please check", Toast.LENGTH_LONG).show();
 		}
-		
 		newSpec.setLandscape(landscape);
-		
+	}
+	
+	/**
+	 * Starts listening to the sensors a mode needs. Sensors already registered are left alone,
+	 * so that changing mode doesn't interrupt them.
+	 */
+	private void registerSensors(ModeSpec newSpec) {
 		final boolean needsAccel = true;
 		final boolean needsGyro = newSpec.getLayout().getExtraDetail() == Layout.EXTRA_MOUSE_ABSOLUTE;
         // Special cases which need extra detail
 		
-		if(needsAccel) {
+		if(needsAccel && !accelRegistered) {
 			Sensor downwardsDirection = null;
 			if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
 				downwardsDirection = sm.getDefaultSensor(Sensor.TYPE_GRAVITY);
@@ -223,17 +231,48 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 				downwardsDirection = sm.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
 			
 			if(downwardsDirection != null)
-				sm.registerListener(sensorEvents, downwardsDirection, SensorManager.SENSOR_DELAY_GAME);
+				accelRegistered = sm.registerListener(sensorEvents, downwardsDirection, SensorManager.SENSOR_DELAY_GAME);
 			else
 				Toast.makeText(this, "Accelerometer not found on this device", Toast.LENGTH_SHORT).show();
 		}
-        if(needsGyro) {
+        if(needsGyro && !gyroRegistered) {
         	Sensor gyro = sm.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         	if(gyro != null)
-				sm.registerListener(sensorEvents, gyro, SensorManager.SENSOR_DELAY_GAME);
+				gyroRegistered = sm.registerListener(sensorEvents, gyro, SensorManager.SENSOR_DELAY_GAME);
         	else
 				Toast.makeText(this, "Gyroscope not found on this device", Toast.LENGTH_SHORT).show();
         }
+        // The gyroscope is still used if this stops, so it is only an improvement
+        if(needsGyro && !rotationVectorRegistered &&
+        		Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 &&
+        		prefs.getBoolean("rotationvector", true)) {
+        	Sensor rotationVector = sm.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        	if(rotationVector != null)
+        		rotationVectorRegistered = sm.registerListener(sensorEvents, rotationVector, SensorManager.SENSOR_DELAY_GAME);
+        }
+	}
+	
+	private synchronized ModeSpec createNewConnection(ModeSpec newSpec) {
+		if(!locksLocked) {
+			wifiLock.acquire();
+			multicastLock.acquire();
+			locksLocked = true;
+		}
+		
+		// Load basic preferences (MINIMAL)
+		int interval = 20;
+		try {
+			interval = Integer.valueOf(prefs.getString("updateinterval", "20")); // Using string as for some reason Android won't
+		} catch (ClassCastException e) {
+			Log.e(TAG, "ERROR: Invalid preference", e);
+			Toast.makeText(this, "Incorrect preferences set, please check", Toast.LENGTH_LONG).show();
+		} catch (NumberFormatException e) {
+			Log.e(TAG, "ERROR: Invalid preference", e);
+			Toast.makeText(this, "Incorrect preferences set, please check", Toast.LENGTH_LONG).show();
+		}
+		
+		prepareSpec(newSpec);
+		registerSensors(newSpec);
 		
 		ConnectionInfo connectionInfo = new ConnectionInfo();
 		connectionInfo.callbacks = this;
@@ -244,21 +283,15 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 		connectionInfo.interval = (float)interval / 1000f;
 		connectionInfo.reverseX = prefs.getBoolean("reverse-x", false);
 		connectionInfo.reverseY = prefs.getBoolean("reverse-y", false);
-		connectionInfo.identity = pskAuthenticator;
+		connectionInfo.sessionCache = app.getPairingEngine().getSessionCache();
+		if(!prefs.getBoolean("forwardsecrecy", true))
+			connectionInfo.cipherSuites = SecureConnection.FAST_CIPHER_SUITES;
 		connectionInfo.onlyBindLocalInsecure = prefs.getBoolean("onlysecureconnection", false);
+		setUpRecording(connectionInfo);
 		
-		// Set up normal connection
-		connection = new Connection();
-		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
-			connection.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, connectionInfo);
-		else
-			connection.execute(connectionInfo);
-		// Set up secure connection
-		secureConnection = new SecureConnection();
-		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
-			secureConnection.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, connectionInfo);
-		else
-			secureConnection.execute(connectionInfo);
+		// Set up engine serving both normal and secure connections
+		engine = new ConnectionEngine();
+		engine.start(connectionInfo);
 		
 		
 		Log.i(TAG, "Starting new connection");
@@ -266,13 +299,46 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 		return newSpec;
 	}
 
+	/**
+	 * Sets the files to record to and replay from, as chosen in the preferences.
+	 * Recordings hold every frame as it was before encryption, so they are kept in
+	 * the app's private storage rather than on external storage, which other apps can read.
+	 */
+	private void setUpRecording(ConnectionInfo connectionInfo) {
+		File dir = new File(getFilesDir(), "recordings");
+		if(prefs.getBoolean("recordsessions", false)) {
+			dir.mkdirs();
+			connectionInfo.recordFile = new File(dir,
+					new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".drec");
+		}
+		String replay = prefs.getString("replayfile", "").trim();
+		if(!replay.equals("")) {
+			connectionInfo.replayFile = new File(dir, replay);
+			try {
+				connectionInfo.replayRate = Float.valueOf(prefs.getString("replayrate", "1"));
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "ERROR: Invalid preference", e);
+			}
+			if(connectionInfo.replayRate <= 0) connectionInfo.replayRate = 1;
+		}
+	}
+
 	@Override
 	public synchronized void onConnectionFinished() {
 		Log.i(TAG, "Connection finishing");
 		// Kill off any remaining threads first.
-		if(connection != null) connection.cancel(true);
-		if(secureConnection != null) secureConnection.cancel(true);
-		connection = null; secureConnection = null;
+		if(engine != null) engine.stop();
+		engine = null;
+		if(locksLocked) {
+			wifiLock.release();
+			multicastLock.release();
+			locksLocked = false;
+		}
+		
+		sm.unregisterListener(sensorEvents);
+		accelRegistered = gyroRegistered = rotationVectorRegistered = false;
+		
+		// Done after releasing everything, as a new connection takes it all again
 		if(app.isServiceRequired()) {
 			// Launch again with old spec
 			Log.i(TAG, "Still required, launching new connection");
@@ -281,21 +347,13 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 			Log.i(TAG, "Not required, stopping service");
 			this.stopSelf();
 		}
-		if(locksLocked) {
-			wifiLock.release();
-			multicastLock.release();
-			locksLocked = false;
-		}
-		
-		sm.unregisterListener(sensorEvents);
 	}
 	
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		app.setServiceRequired(false);
-		if(connection != null) connection.cancel(true);
-		if(secureConnection != null) secureConnection.cancel(true);
+		if(engine != null) engine.stop();
 		mdns.stopRunning();
 		Log.i(TAG, "Service stopped");
 	}
@@ -312,7 +370,6 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
     }
     private final IBinder binder = new LocalBinder();
     
-    long gyroIntegrationTime;
     boolean gyroAvailable = false;
     
     private SensorEventListener sensorEvents = new SensorEventListener() {
@@ -325,6 +382,8 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 			switch(event.sensor.getType()) {
 			case Sensor.TYPE_ACCELEROMETER:
 			case Sensor.TYPE_GRAVITY:
+				// The filter works in the phone's own axes, which don't depend on the mode
+				orientation.updateGravity(event.values[0], event.values[1], event.values[2]);
 				if(spec.isLandscape()) {
 					accelerometer.set(
 							-event.values[1],
@@ -334,6 +393,10 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 					accelerometer.set(event.values);
 				}
 				accelerometer.minusLocal(calibration.x, calibration.y, 0);
+				final long accelerometerTime = sensorClock.toNanoTime(event.timestamp);
+				sensorRing.add(SensorRing.TYPE_ACCELEROMETER, accelerometerTime,
+						accelerometer.x, accelerometer.y, accelerometer.z);
+				accelerometerHistory.add(accelerometerTime, accelerometer.x, accelerometer.y, accelerometer.z);
 				break;
 			case Sensor.TYPE_GYROSCOPE:
 				gyroAvailable = true;
@@ -345,39 +408,40 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 				} else {
 					rotationalVelocity.set(event.values);
 				}
-				float timeDiff = (float)(gyroIntegrationTime - System.nanoTime()) / 1000f / 1000f / 1000f;
-				if(gyroIntegrationTime != 0) {
-					// TODO: Use trapezium rule?
-					Vec3 rotationDelta = rotationalVelocity.mul(timeDiff);
-					rotation.addLocal(rotationDelta);
-					
-					/*
-					 * The dot product here selects the components of the rotations which
-					 * are important for rotating about the world z-axis (not the phone's one)
-					 */
-					Vec3 gravityUnit = accelerometer.getUnitVector();
-					float normalisedRotation = rotationalVelocity.dot(gravityUnit);
-					worldRotation += normalisedRotation * timeDiff;
-				}
-				
-				gyroIntegrationTime = System.nanoTime();
+				final long gyroscopeTime = sensorClock.toNanoTime(event.timestamp);
+				sensorRing.add(SensorRing.TYPE_GYROSCOPE, gyroscopeTime,
+						rotationalVelocity.x, rotationalVelocity.y, rotationalVelocity.z);
+				final float timeDiff = orientation.updateGyroscope(event.timestamp,
+						event.values[0], event.values[1], event.values[2]);
+				// Trapezium rule, between the last reading and this one.
+				// Subtracted, as computers have always been sent it this way round
+				rotation.x -= (lastRotationalVelocity.x + rotationalVelocity.x) / 2 * timeDiff;
+				rotation.y -= (lastRotationalVelocity.y + rotationalVelocity.y) / 2 * timeDiff;
+				rotation.z -= (lastRotationalVelocity.z + rotationalVelocity.z) / 2 * timeDiff;
+				lastRotationalVelocity.set(rotationalVelocity.x, rotationalVelocity.y, rotationalVelocity.z);
+				// Computers have always been sent clockwise rotation
+				gyroscopeHistory.add(gyroscopeTime, rotation.x, rotation.y, rotation.z, -orientation.getHeading());
+				break;
+			case Sensor.TYPE_GAME_ROTATION_VECTOR:
+				orientation.updateRotationVector(event.timestamp, event.values);
+				break;
 			}
 		}
     };
 
 	@Override
-	public Vec3 getAccelerometerValues() {
-		return accelerometer;
+	public SensorHistory getAccelerometerHistory() {
+		return accelerometerHistory;
 	}
 
 	@Override
-	public Vec3 getGyroscopeValues() {
-		return rotation;
+	public SensorHistory getGyroscopeHistory() {
+		return gyroscopeHistory;
 	}
 
 	@Override
-	public float getWorldRotation() {
-		return worldRotation;
+	public SensorRing getSensorRing() {
+		return sensorRing;
 	}
     
     public void broadcastState() {
@@ -425,50 +489,9 @@ public class BGService extends Service implements ConnectionCallbacks, LogTag {
 		this.screenData = screenData;
 	}
 	
-	// TLS authenticator
-	private TlsPSKIdentity pskAuthenticator =  new TlsPSKIdentity() {
-		@Override
-		public void skipIdentityHint() {
-			Log.e(TAG, "skipIdentityHint called!!!11!!");
-		}
-		
-		private UUID computerId;
-		
-		private DevicePair credentials;
-		
-		private void retrieveCredentials() {
-			if(credentials != null) return;
-			Pairing pairing = app.getPairingEngine();
-			credentials = pairing.findDevicePair(computerId);
-		}
-		
-		@Override
-		public void notifyIdentityHint(byte[] psk_identity_hint) {
-			String uuid = new String(psk_identity_hint);
-			Log.v(TAG, "Identity received: " + uuid);
-			try {
-				computerId = UUID.fromString(uuid);
-			} catch(NullPointerException e) {
-				Log.e(TAG, "No PSK identity given?!?");
-			} catch(IllegalArgumentException e) {
-				Log.w(TAG, "Incorrectly formatted UUID");
-			}
-		}
-		
-		@Override
-		public byte[] getPSKIdentity() {
-			retrieveCredentials();
-			if(credentials == null) return "NOCREDS".getBytes();
-			Log.v(TAG, "Sending identity: " + credentials.getDeviceId().toString());
-			return credentials.getDeviceId().toString().getBytes();
-		}
-		
-		@Override
-		public byte[] getPSK() {
-			retrieveCredentials();
-			Log.v(TAG, "Sending PSK");
-			if(credentials == null) return new byte[] {};
-			return credentials.getPsk();
-		}
-	};
+	@Override
+	public DevicePair findDevicePair(UUID computerId) {
+		Pairing pairing = app.getPairingEngine();
+		return pairing.findDevicePair(computerId);
+	}
 }
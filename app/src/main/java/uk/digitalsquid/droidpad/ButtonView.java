@@ -35,7 +35,7 @@ import android.view.View;
  * @author william
  *
  */
-public class ButtonView extends View implements LogTag, UICallbacks
+public class ButtonView extends View implements LogTag
 {
 	private boolean landscape;
 	
@@ -70,7 +70,6 @@ public class ButtonView extends View implements LogTag, UICallbacks
 		this.parent = parent;
 		
 		layout = mode.getLayout(); // No need to keep type?
-		layout.setUiCallbacks(this);
         
         for(Item item : layout) {
         	if(item instanceof Slider) {
@@ -80,6 +79,7 @@ public class ButtonView extends View implements LogTag, UICallbacks
         
         landscape = mode.isLandscape();
 		
+		layout.publishState();
 		parent.sendEvent(layout);
 	}
 	
@@ -194,6 +194,7 @@ public class ButtonView extends View implements LogTag, UICallbacks
 		if(parent != null) parent.sendEvent(layout); // Make sure always latest - eg service restart
 		
 		finaliseItemState();
+		layout.publishState();
 		
 		invalidate();
 
@@ -203,10 +204,4 @@ public class ButtonView extends View implements LogTag, UICallbacks
 	Layout getLayout() {
 		return layout;
 	}
-
-	@Override
-	public void refreshScreen() {
-		// TODO: Only call if something has changed?
-		postInvalidate();
-	}
 }
@@ -0,0 +1,266 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.io.IOException;
+
+import uk.digitalsquid.droidpad.serialise.BinarySerialiser;
+import android.util.Log;
+
+/**
+ * Parses commands from the computer as they arrive. Data can be given in any
+ * sized pieces: a command split over several reads is put back together, and
+ * several commands in one read are all handled.
+ *
+ * Binary commands are "DCMD", then the command as an int, then a payload whose
+ * size depends on the command (see {@link #getPayloadSize(int)}). The payload
+ * holds up to two values: an int, or one or two longs. All values are big-endian.
+ * On the normal port the text protocol's tags (<code>&lt;STOP&gt;</code> and so on)
+ * are also understood, and are turned into the same commands.
+ * @author william
+ *
+ */
+public class CommandParser implements LogTag {
+
+	public static interface Listener {
+		/**
+		 * @param command One of the <code>CMD_</code> constants, or an unknown value
+		 * @param argument The first value in the payload of the command, or 0 if it has none
+		 * @param argument2 The second value in the payload, or 0
+		 */
+		void onCommand(int command, long argument, long argument2) throws IOException;
+	}
+
+	/**
+	 * Stop the connection
+	 */
+	public static final int CMD_STOP = 1;
+	/**
+	 * Switches the connection to delta frames
+	 */
+	public static final int CMD_DELTA = 2;
+	/**
+	 * Changes the time between frames. Payload is the interval in microseconds, as an int.
+	 */
+	public static final int CMD_SET_INTERVAL = 3;
+	/**
+	 * Asks for the next delta frame to be a full frame
+	 */
+	public static final int CMD_REQUEST_KEYFRAME = 4;
+	/**
+	 * Asks for a pong. Payload is a long, which is sent back unchanged.
+	 */
+	public static final int CMD_PING = 5;
+	/**
+	 * The reply to a ping from the device. Payload is the device time from
+	 * the ping then the computer's time in microseconds, as longs.
+	 */
+	public static final int CMD_PONG = 6;
+	/**
+	 * Turns on sending every sensor sample with each frame
+	 */
+	public static final int CMD_SAMPLES = 7;
+	/**
+	 * Switches the connection to compact frames
+	 */
+	public static final int CMD_COMPACT = 8;
+	/**
+	 * Agrees which optional features to use. Payload is the computer's protocol version,
+	 * the <code>FEATURE_</code> flags it wants (see {@link BinarySerialiser}) and the frame
+	 * interval it wants in microseconds, or 0 to leave it, as ints. The argument is the version
+	 * in the high word and the features in the low word; the second argument is the interval.
+	 * The device replies with the features it has turned on.
+	 */
+	public static final int CMD_NEGOTIATE = 9;
+	/**
+	 * Secure connections only: asks for frames to be sent by DTLS. Payload is the port, as an int.
+	 */
+	public static final int CMD_SECURE_DATAGRAM = 10;
+	/**
+	 * Chooses what to do when the computer reads frames too slowly. Payload is
+	 * one of the <code>SLOW_CONSUMER_</code> values in {@link BinarySerialiser}, as an int.
+	 */
+	public static final int CMD_SLOW_CONSUMER = 11;
+
+	/**
+	 * Text protocol only: <code>&lt;BINARY&gt;</code>
+	 */
+	public static final int CMD_BINARY = 0x100;
+	/**
+	 * Text protocol only: <code>&lt;DATAGRAM&gt;port&lt;/DATAGRAM&gt;</code>.
+	 * The argument is the port, or -1 if it wasn't a number.
+	 */
+	public static final int CMD_DATAGRAM = 0x101;
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_HEADER = 1;
+	private static final int STATE_COMMAND = 2;
+	private static final int STATE_PAYLOAD = 3;
+	private static final int STATE_TAG = 4;
+	private static final int STATE_TAG_CONTENT = 5;
+
+	private static final int MAX_TAG_LENGTH = 32;
+
+	private final Listener listener;
+	private final boolean acceptTags;
+
+	private int state = STATE_IDLE;
+
+	/**
+	 * The part of a header, tag or tag content received so far
+	 */
+	private final byte[] scratch = new byte[MAX_TAG_LENGTH];
+	private int scratchLength;
+
+	private int command;
+	private int commandBytes;
+	private final long[] payload = new long[2];
+	private int payloadSize;
+	private int payloadBytes;
+
+	/**
+	 * @param listener
+	 * @param acceptTags If <code>true</code>, text protocol tags are parsed as well as binary commands.
+	 */
+	public CommandParser(Listener listener, boolean acceptTags) {
+		this.listener = listener;
+		this.acceptTags = acceptTags;
+	}
+
+	/**
+	 * Returns the number of bytes that follow the given command.
+	 */
+	public static int getPayloadSize(int command) {
+		switch(command) {
+		case CMD_SET_INTERVAL:
+		case CMD_SECURE_DATAGRAM:
+		case CMD_SLOW_CONSUMER:
+			return 4;
+		case CMD_PING:
+			return 8;
+		case CMD_PONG:
+			return 16;
+		case CMD_NEGOTIATE:
+			return 12;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the next piece of data from the computer, calling the listener
+	 * for each complete command.
+	 */
+	public void parse(byte[] data, int offset, int length) throws IOException {
+		final int end = offset + length;
+		for(int i = offset; i < end; i++) {
+			final byte b = data[i];
+			switch(state) {
+			case STATE_IDLE:
+				if(b == BinarySerialiser.CMD_HEADER_BYTES[0]) {
+					scratch[0] = b;
+					scratchLength = 1;
+					state = STATE_HEADER;
+				} else if(b == '<' && acceptTags) {
+					scratchLength = 0;
+					state = STATE_TAG;
+				}
+				// Anything else, such as line endings, is ignored
+				break;
+			case STATE_HEADER:
+				scratch[scratchLength++] = b;
+				if(b != BinarySerialiser.CMD_HEADER_BYTES[scratchLength - 1]) {
+					Log.w(TAG, "Nonsense command header received: " + new String(scratch, 0, scratchLength, "US-ASCII"));
+					state = STATE_IDLE;
+					i--; // This byte could be the start of the next command
+				} else if(scratchLength == BinarySerialiser.CMD_HEADER_BYTES.length) {
+					command = 0;
+					commandBytes = 0;
+					state = STATE_COMMAND;
+				}
+				break;
+			case STATE_COMMAND:
+				command = (command << 8) | (b & 0xFF);
+				if(++commandBytes == 4) {
+					payload[0] = payload[1] = 0;
+					payloadBytes = 0;
+					payloadSize = getPayloadSize(command);
+					if(payloadSize == 0)
+						dispatch(command, 0, 0);
+					else
+						state = STATE_PAYLOAD;
+				}
+				break;
+			case STATE_PAYLOAD:
+				final int arg = payloadBytes++ / 8;
+				payload[arg] = (payload[arg] << 8) | (b & 0xFF);
+				if(payloadBytes == payloadSize)
+					dispatch(command, payload[0], payload[1]);
+				break;
+			case STATE_TAG:
+				if(b == '>') {
+					onTag(new String(scratch, 0, scratchLength, "US-ASCII"));
+				} else if(scratchLength == MAX_TAG_LENGTH) {
+					Log.w(TAG, "Tag from computer too long, ignoring");
+					state = STATE_IDLE;
+				} else
+					scratch[scratchLength++] = b;
+				break;
+			case STATE_TAG_CONTENT:
+				if(b == '<') {
+					// Start of the closing tag, which is then parsed (and ignored) as a tag
+					long value;
+					try {
+						value = Long.parseLong(new String(scratch, 0, scratchLength, "US-ASCII").trim());
+					} catch(NumberFormatException e) {
+						Log.w(TAG, "Invalid value in tag from computer", e);
+						value = -1;
+					}
+					dispatch(command, value, 0);
+					scratchLength = 0;
+					state = STATE_TAG;
+				} else if(scratchLength == MAX_TAG_LENGTH) {
+					Log.w(TAG, "Tag content from computer too long, ignoring");
+					state = STATE_IDLE;
+				} else
+					scratch[scratchLength++] = b;
+				break;
+			}
+		}
+	}
+
+	private void onTag(String tag) throws IOException {
+		state = STATE_IDLE;
+		if(tag.equals("STOP"))
+			dispatch(CMD_STOP, 0, 0);
+		else if(tag.equals("BINARY"))
+			dispatch(CMD_BINARY, 0, 0);
+		else if(tag.equals("DELTA"))
+			dispatch(CMD_DELTA, 0, 0);
+		else if(tag.equals("DATAGRAM")) {
+			command = CMD_DATAGRAM;
+			scratchLength = 0;
+			state = STATE_TAG_CONTENT;
+		} else if(!tag.startsWith("/"))
+			Log.w(TAG, "Unknown tag from computer: " + tag);
+	}
+
+	private void dispatch(int command, long argument, long argument2) throws IOException {
+		state = STATE_IDLE;
+		listener.onCommand(command, argument, argument2);
+	}
+}
@@ -16,6 +16,9 @@
 
 package uk.digitalsquid.droidpad;
 
+import java.util.UUID;
+
+import uk.digitalsquid.droidpad.Pairing.DevicePair;
 import uk.digitalsquid.droidpad.buttons.Layout;
 import android.app.Application;
 
@@ -38,9 +41,25 @@ public interface ConnectionCallbacks {
 	 */
 	void broadcastAlert(int type);
 	
-	Vec3 getAccelerometerValues();
-	Vec3 getGyroscopeValues();
-	float getWorldRotation();
+	/**
+	 * Returns the accelerometer's x, y and z.
+	 */
+	SensorHistory getAccelerometerHistory();
+	/**
+	 * Returns the integrated gyroscope's x, y and z, then the rotation about the world's z axis.
+	 */
+	SensorHistory getGyroscopeHistory();
+	/**
+	 * Returns the ring which every sensor sample is added to.
+	 */
+	SensorRing getSensorRing();
+
+	/**
+	 * Finds the pairing with a computer, from the identity hint of a TLS handshake.
+	 * Called on the thread doing the handshake, once per handshake.
+	 * @return <code>null</code> if the computer isn't paired
+	 */
+	DevicePair findDevicePair(UUID computerId);
 	
 	public Application getApplication();
 }
@@ -0,0 +1,650 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import uk.digitalsquid.droidpad.buttons.Layout;
+import uk.digitalsquid.droidpad.buttons.ModeSpec;
+import uk.digitalsquid.droidpad.serialise.BinarySerialiser;
+import uk.digitalsquid.droidpad.transport.TcpTransportServer;
+import uk.digitalsquid.droidpad.transport.Transport;
+import uk.digitalsquid.droidpad.transport.TransportServer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Serves both the normal ({@link Connection}) and secure ({@link SecureConnection})
+ * ports from one thread. A {@link Selector} is used to accept connections and
+ * to read and write every session without blocking, whatever {@link Transport}
+ * it uses, and frames are sent to all
+ * sessions on each tick of the {@link FrameClock}. When a button is pressed or
+ * released an extra frame is sent straight away, no more often than {@link #MIN_EDGE_GAP}.
+ * The sensors and items are read once per frame, each sensor's value being worked out
+ * for the time of the frame (see {@link SensorHistory}), and each format is encoded
+ * once and shared by every session using it (see {@link FrameProducer}).
+ *
+ * The engine has its own threads rather than sharing the app's thread pool:
+ * <ul>
+ * <li>The engine thread, at a high priority, which sends frames and does all socket IO.
+ * These stay on one thread so that sessions never need locking and a frame goes
+ * straight from the encoder to the socket.</li>
+ * <li>A control thread, at background priority, for work which blocks, such as
+ * DTLS handshakes. See {@link #getControlExecutor()}.</li>
+ * </ul>
+ * State changes are posted to the main thread, where {@link ConnectionCallbacks} are called.
+ * @author william
+ *
+ */
+public class ConnectionEngine implements Runnable, InputSnapshot.EdgeListener, LogTag {
+
+	public static final int STATE_CONNECTED = 1;
+	public static final int STATE_WAITING = 2;
+	public static final int STATE_CONNECTION_LOST = 3;
+
+	/**
+	 * How often to check whether the service is still required when no sessions
+	 * are running, in milliseconds.
+	 */
+	static final long IDLE_POLL_INTERVAL = 250;
+
+	/**
+	 * The shortest time between a frame and one sent because of a button edge, in nanoseconds.
+	 */
+	static final long MIN_EDGE_GAP = 4L * 1000L * 1000L;
+
+	private App app;
+
+	private ConnectionInfo info;
+	private Thread thread;
+	private volatile boolean stopped;
+	/**
+	 * Where {@link ConnectionCallbacks} are called. Set to post to the main thread
+	 * when the engine starts, unless one was given.
+	 */
+	private Executor mainThread;
+	private final ExecutorService control = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "DroidPad control");
+		}
+	});
+
+	private volatile boolean idling = true; // Also read by the UI thread, in onInputEdge()
+
+	private volatile Selector selector; // Woken from other threads
+
+	/**
+	 * A server and the type of session computers from it get. Attached to the server's key.
+	 */
+	private static final class Listener {
+		final TransportServer server;
+		final boolean secure;
+
+		Listener(TransportServer server, boolean secure) {
+			this.server = server;
+			this.secure = secure;
+		}
+	}
+	private final List<Listener> listeners = new ArrayList<Listener>();
+
+	private final List<Session> sessions = new ArrayList<Session>();
+
+	private FrameClock clock;
+	private AnalogueData analogue;
+	private final SensorRing.Batch samples = new SensorRing.Batch(BinarySerialiser.MAX_SAMPLES);
+	/**
+	 * The sensors' values at the time of the current frame
+	 */
+	private final Vec3 accelerometer = new Vec3(), gyroscope = new Vec3();
+	private float worldRotation;
+	private final float[] resampled = new float[SensorHistory.MAX_WIDTH];
+	private final FrameProducer frames = new FrameProducer();
+
+	/**
+	 * Both <code>null</code> unless asked for in the {@link ConnectionInfo}
+	 */
+	private SessionRecorder recorder;
+	private SessionReplayer replayer;
+	private int sessionCount;
+
+	/**
+	 * Set by the UI thread when a button changes, cleared once a frame has gone out.
+	 */
+	private volatile boolean edgePending;
+	private long lastFrame;
+	private long edgeFrames;
+
+	/**
+	 * A new mode chosen by the user, waiting to be picked up by the engine's thread
+	 */
+	private volatile ModeSpec pendingSpec;
+
+	public ConnectionEngine() {
+	}
+
+	/**
+	 * @param mainThread Where to call {@link ConnectionCallbacks}, instead of the
+	 * main thread, such as in tests which have no Android looper
+	 */
+	ConnectionEngine(Executor mainThread) {
+		this.mainThread = mainThread;
+	}
+
+	/**
+	 * Starts the engine on its own thread.
+	 */
+	public void start(ConnectionInfo info) {
+		this.info = info;
+		if(mainThread == null) {
+			final Handler handler = new Handler(Looper.getMainLooper());
+			mainThread = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					handler.post(command);
+				}
+			};
+		}
+		app = (App) info.callbacks.getApplication();
+		thread = new Thread(this, "DroidPad engine");
+		thread.start();
+	}
+
+	/**
+	 * Stops the engine, sending stop messages to any connected computers first.
+	 * {@link ConnectionCallbacks#onConnectionFinished()} isn't called.
+	 * Can be called from any thread, and returns without waiting.
+	 */
+	public void stop() {
+		stopped = true;
+		Selector selector = this.selector;
+		if(selector != null) selector.wakeup();
+	}
+
+	/**
+	 * Returns the executor for work which would block the engine's thread.
+	 * It is shut down when the engine stops, once the work already given to it is done.
+	 */
+	Executor getControlExecutor() {
+		return control;
+	}
+
+	@Override
+	public void run() {
+		setPriority();
+		try {
+			loop();
+		} finally {
+			if(recorder != null) recorder.close();
+			control.shutdown();
+		}
+		if(stopped) {
+			Log.d(TAG, "Loop finished after being stopped");
+		} else {
+			Log.d(TAG, "Loop finished successfully");
+			mainThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					info.callbacks.onConnectionFinished();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Raises the engine thread to the priority of display work. Some devices refuse
+	 * this to apps, in which case the ordinary display priority is used.
+	 */
+	private void setPriority() {
+		try {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+			return;
+		} catch(IllegalArgumentException e) {
+			Log.w(TAG, "Failed to set urgent display priority", e);
+		} catch(SecurityException e) {
+			Log.w(TAG, "Not allowed urgent display priority", e);
+		}
+		try {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+		} catch(IllegalArgumentException e) {
+			Log.w(TAG, "Failed to set display priority", e);
+		} catch(SecurityException e) {
+			Log.w(TAG, "Not allowed display priority", e);
+		}
+	}
+
+	private void loop() {
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to open selector", e);
+			return;
+		}
+
+		Log.i(TAG, "Normal connection being created on " + info.port);
+		if(info.onlyBindLocalInsecure)
+			Log.i(TAG, "Insecure connection only being created on local addresses");
+		TransportServer plainServer = createServer(info.port, info.onlyBindLocalInsecure);
+		Log.i(TAG, "Secure connection being created on " + info.securePort);
+		TransportServer secureServer = createServer(info.securePort, false);
+		if(plainServer == null || secureServer == null) {
+			closeServer(plainServer);
+			closeServer(secureServer);
+			closeServers();
+			return;
+		}
+		try {
+			listen(plainServer, false);
+			listen(secureServer, true);
+			if(info.extraServers != null) {
+				for(TransportServer server : info.extraServers) listen(server, false);
+			}
+			if(info.extraSecureServers != null) {
+				for(TransportServer server : info.extraSecureServers) listen(server, true);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to register servers", e);
+			closeServers();
+			return;
+		}
+		Log.i(TAG, "Created server sockets");
+
+		clock = new FrameClock(info.interval);
+		analogue = new AnalogueData(null, null, 0, info.reverseX, info.reverseY);
+		openRecordings();
+
+		while(!stopped && (isRequired() || !sessions.isEmpty())) {
+			try {
+				// Rounded up, so that less than a millisecond to go still waits rather than spinning
+				long wait = idling ? IDLE_POLL_INTERVAL : (nanosUntilFrame() + 999999L) / 1000000L;
+				if(wait > 0)
+					selector.select(wait);
+				else
+					selector.selectNow();
+			} catch (IOException e) {
+				Log.e(TAG, "Selector failed", e);
+				break;
+			}
+
+			processSelectedKeys();
+			if(pendingSpec != null) changeSpec();
+
+			if(!idling) {
+				if(replayer != null ? replayer.nanosUntilNext(System.nanoTime()) == 0 : clock.pollTick()) {
+					sendFrames();
+				} else if(edgePending && replayer == null && System.nanoTime() - lastFrame >= MIN_EDGE_GAP) {
+					edgeFrames++;
+					sendFrames();
+				}
+			}
+		}
+
+		for(Session session : sessions) {
+			try {
+				if(session.isActive()) session.sendStop();
+			} catch(IOException e) {
+				Log.w(TAG, "Failed to send stop message to server", e);
+			}
+			session.close();
+		}
+		if(!sessions.isEmpty()) {
+			sessions.clear();
+			postState(STATE_WAITING, "");
+		}
+		closeServers();
+
+		Log.i(TAG, "Connection thread ending");
+	}
+
+	/**
+	 * Returns the time until the next frame should be sent, which is the next tick
+	 * or sooner if a button has changed.
+	 */
+	private long nanosUntilFrame() {
+		// Button presses are already in the recording
+		if(replayer != null) return replayer.nanosUntilNext(System.nanoTime());
+		long wait = clock.nanosUntilTick();
+		if(edgePending)
+			wait = Math.min(wait, Math.max(0, lastFrame + MIN_EDGE_GAP - System.nanoTime()));
+		return wait;
+	}
+
+	/**
+	 * Called on the UI thread when a button is pressed or released.
+	 * Wakes the engine so that a frame goes out now rather than on the next tick.
+	 */
+	@Override
+	public void onInputEdge() {
+		if(idling) return;
+		edgePending = true;
+		Selector selector = this.selector;
+		if(selector != null) selector.wakeup();
+	}
+
+	/**
+	 * Switches to a new mode without closing the server sockets or connections.
+	 * Can be called from any thread.
+	 */
+	public void setSpec(ModeSpec spec) {
+		pendingSpec = spec;
+		Selector selector = this.selector;
+		if(selector != null) selector.wakeup();
+	}
+
+	private void changeSpec() {
+		info.spec = pendingSpec;
+		pendingSpec = null;
+		Log.i(TAG, "Mode changed to " + info.spec.getModeString());
+		for(int i = 0; i < sessions.size(); i++) {
+			Session session = sessions.get(i);
+			if(!session.isActive()) continue;
+			try {
+				session.onSpecChanged();
+			} catch (IOException e) {
+				Log.w(TAG, "Lost connection with computer", e);
+				endSession(session, STATE_CONNECTION_LOST);
+				i--;
+				continue;
+			}
+			if(session.isFinished()) {
+				endSession(session, STATE_WAITING);
+				i--;
+			}
+		}
+	}
+
+	/**
+	 * Opens the files to record to and replay from, if there are any. If one can't
+	 * be opened the engine carries on without it.
+	 */
+	private void openRecordings() {
+		if(info.recordFile != null) {
+			try {
+				recorder = new SessionRecorder(info.recordFile);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to open file to record to", e);
+			}
+		}
+		if(info.replayFile != null) {
+			try {
+				replayer = new SessionReplayer(info.replayFile, info.replayRate);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to open recording to replay", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns where sessions should record the frames they send, or <code>null</code>.
+	 */
+	SessionRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Opens a TCP server, retrying until it works or the engine is stopped.
+	 */
+	private TransportServer createServer(int port, boolean onlyLocal) {
+		while(!stopped) {
+			try {
+				return new TcpTransportServer(port, onlyLocal);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to create server socket", e);
+				safeSleep(500);
+			}
+		}
+		return null;
+	}
+
+	private void listen(TransportServer server, boolean secure) throws IOException {
+		Listener listener = new Listener(server, secure);
+		listeners.add(listener);
+		server.register(selector, listener);
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while(keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if(!key.isValid()) continue;
+
+			if(key.attachment() instanceof Listener) {
+				acceptSession((Listener) key.attachment());
+				continue;
+			}
+
+			Session session = (Session) key.attachment();
+			try {
+				if(key.isReadable()) session.onReadable();
+				if(key.isValid() && key.isWritable()) session.onWritable();
+			} catch (IOException e) {
+				Log.w(TAG, "Lost connection with computer", e);
+				endSession(session, STATE_CONNECTION_LOST);
+				continue;
+			}
+			if(session.isFinished())
+				endSession(session, STATE_WAITING);
+		}
+	}
+
+	private void acceptSession(Listener listener) {
+		Transport transport;
+		try {
+			transport = listener.server.accept();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to accept connection", e);
+			return;
+		}
+		if(transport == null) return;
+		Log.i(TAG, "Connection created from " + transport.getPeerName());
+
+		Session session = listener.secure ?
+				new SecureConnection(this, info, transport) :
+				new Connection(this, info, transport);
+		try {
+			transport.register(selector, session);
+			session.setId(++sessionCount);
+			sessions.add(session);
+			session.onConnected();
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to initialise connection", e);
+			endSession(session, STATE_CONNECTION_LOST);
+		}
+	}
+
+	/**
+	 * Called by a session once it is ready for frames.
+	 */
+	void onSessionActive(Session session) {
+		if(idling) {
+			// Samples from before anyone was connected are stale
+			info.callbacks.getSensorRing().skip();
+			clock.start();
+			if(replayer != null) replayer.start(System.nanoTime());
+			idling = false;
+		}
+		postState(STATE_CONNECTED, session.getPeerAddress());
+	}
+
+	/**
+	 * Changes the time between frames, as asked for by a computer.
+	 * All sessions share the same clock, so this affects every computer.
+	 * @param interval The new interval IN SECONDS
+	 */
+	void setFrameInterval(float interval) {
+		Log.i(TAG, String.format("Frame interval changed to %.1fms", interval * 1000f));
+		clock.setInterval(interval);
+	}
+
+	/**
+	 * @return The time between frames IN SECONDS
+	 */
+	float getFrameInterval() {
+		return clock.getInterval();
+	}
+
+	private void endSession(Session session, int state) {
+		session.close();
+		sessions.remove(session);
+		if(session.getWriteStalls() > 0)
+			Log.i(TAG, String.format("Computer stalled %d times (%.1fms total, %.1fms max); %d frames superseded",
+					session.getWriteStalls(),
+					(float)session.getTotalWriteStall() / 1000f / 1000f,
+					(float)session.getMaxWriteStall() / 1000f / 1000f,
+					session.getSupersededFrames()));
+		if(session.getFramesWritten() > 0)
+			Log.i(TAG, String.format("%d frames written, %.1f bytes each, %.1f bytes on the wire",
+					session.getFramesWritten(),
+					(float)session.getFrameBytes() / session.getFramesWritten(),
+					(float)session.getWireBytes() / session.getFramesWritten()));
+		if(session.getLatency().getCount() > 0)
+			Log.i(TAG, "Latency: " + session.getLatency());
+
+		for(Session other : sessions) {
+			if(other.isActive()) {
+				// Still connected to something else
+				postState(STATE_CONNECTED, other.getPeerAddress());
+				return;
+			}
+		}
+		if(!idling) {
+			Log.i(TAG, "Frame clock: " + clock + ", " + edgeFrames + " frames sent early for buttons");
+			SensorRing ring = info.callbacks.getSensorRing();
+			Log.i(TAG, "Sensor samples: " + ring.getDropped() + " dropped, " + ring.getDecimated() + " decimated, " +
+					(info.callbacks.getAccelerometerHistory().getRetries() + info.callbacks.getGyroscopeHistory().getRetries()) +
+					" reads retried");
+			Log.i(TAG, "Frames: " + frames.getEncodedFrames() + " encoded, " + frames.getSharedFrames() + " shared between computers");
+			idling = true;
+		}
+		postState(state, "");
+	}
+
+	private void sendFrames() {
+		final InputSnapshot input;
+		final long now;
+		if(replayer != null) {
+			now = System.nanoTime();
+			replayer.next(now, analogue, samples);
+			input = replayer.getInput();
+			input.read();
+		} else {
+			Layout layout = info.callbacks.getScreenData();
+			if(layout == null) return;
+			// Read the items once; every session gets the same state
+			input = layout.getSnapshot();
+			input.setEdgeListener(this);
+			edgePending = false;
+			input.read();
+			now = System.nanoTime();
+			readSensors(now);
+			analogue.set(accelerometer, gyroscope, worldRotation);
+			analogue.setCaptureTime(now);
+			info.callbacks.getSensorRing().drainTo(samples);
+			analogue.setSamples(samples);
+		}
+		lastFrame = now;
+		if(recorder != null) recorder.recordInput(now, analogue, input);
+		frames.begin(analogue, input);
+		for(int i = 0; i < sessions.size(); i++) {
+			Session session = sessions.get(i);
+			if(!session.isActive()) continue;
+			try {
+				session.pingIfDue(now);
+				session.sendFrame(frames);
+			} catch (IOException e) {
+				Log.w(TAG, "Lost connection with computer", e);
+				endSession(session, STATE_CONNECTION_LOST);
+				i--;
+			}
+		}
+	}
+
+	/**
+	 * Works out the sensors' values at the time of a frame. Sensors with no
+	 * samples yet keep their previous values.
+	 */
+	private void readSensors(long now) {
+		final long window = (long)(clock.getInterval() * 1000f * 1000f * 1000f);
+		if(info.callbacks.getAccelerometerHistory().sample(now, info.resampling, window, resampled))
+			accelerometer.set(resampled[0], resampled[1], resampled[2]);
+		if(info.callbacks.getGyroscopeHistory().sample(now, info.resampling, window, resampled)) {
+			gyroscope.set(resampled[0], resampled[1], resampled[2]);
+			worldRotation = resampled[3];
+		}
+	}
+
+	private void closeServers() {
+		for(Listener listener : listeners)
+			closeServer(listener.server);
+		listeners.clear();
+		try {
+			if(selector != null) selector.close();
+		} catch (IOException e) { }
+	}
+
+	private static void closeServer(TransportServer server) {
+		try {
+			if(server != null) server.close();
+		} catch (IOException e) { }
+	}
+
+	private void safeSleep(long time) {
+		try {
+			Thread.sleep(time);
+		} catch (InterruptedException e) { }
+	}
+
+	/**
+	 * Tells the UI about a change of state, on the main thread.
+	 */
+	private void postState(final int status, final String connectedPc) {
+		mainThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				info.callbacks.broadcastState(status, connectedPc);
+			}
+		});
+	}
+
+	/**
+	 * Returns <code>true</code> if the service is required by the UI
+	 */
+	protected boolean isRequired() {
+		if(app != null) return app.isServiceRequired();
+		return true;
+	}
+}
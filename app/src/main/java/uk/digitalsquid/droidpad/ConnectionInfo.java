@@ -1,8 +1,9 @@
 package uk.digitalsquid.droidpad;
 
-import org.spongycastle.crypto.tls.TlsPSKIdentity;
+import java.io.File;
 
 import uk.digitalsquid.droidpad.buttons.ModeSpec;
+import uk.digitalsquid.droidpad.transport.TransportServer;
 
 public final class ConnectionInfo {
 	public int port, securePort;
@@ -10,14 +11,43 @@ public final class ConnectionInfo {
 	 * The interval between sending updates IN SECONDS
 	 */
 	public float interval;
+	/**
+	 * How the sensors' values are worked out at the time of each frame
+	 */
+	public SensorHistory.Resampling resampling = SensorHistory.Resampling.AVERAGE;
 	public ConnectionCallbacks callbacks;
 	public ModeSpec spec;
 	public boolean reverseX, reverseY;
 	
-	public TlsPSKIdentity identity;
+	/**
+	 * Sessions to resume with paired computers. May be <code>null</code>.
+	 */
+	public TlsSessionCache sessionCache;
+	/**
+	 * The TLS cipher suites to offer, most preferred first, or <code>null</code>
+	 * for {@link SecureConnection#DEFAULT_CIPHER_SUITES}. Set from the "forwardsecrecy" preference.
+	 */
+	public int[] cipherSuites;
 	
 	/**
 	 * If <code>true</code>, insecure connections should only be made locally (for USB).
 	 */
 	public boolean onlyBindLocalInsecure;
+
+	/**
+	 * Servers to accept computers from as well as the TCP ports, such as a
+	 * {@link uk.digitalsquid.droidpad.transport.MemoryTransportServer} in tests. Either may be <code>null</code>.
+	 */
+	public TransportServer[] extraServers, extraSecureServers;
+
+	/**
+	 * If set, the input and every frame sent are recorded to this file (see {@link SessionRecorder}).
+	 */
+	public File recordFile;
+	/**
+	 * If set, the input is played back from this recording rather than read
+	 * from the sensors and screen, at {@link #replayRate} times the original speed.
+	 */
+	public File replayFile;
+	public float replayRate = 1;
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+import android.util.Log;
+
+/**
+ * Sends binary frames to the computer over UDP, for when the computer has asked
+ * for datagrams with <code>&lt;DATAGRAM&gt;port&lt;/DATAGRAM&gt;</code>.
+ * The TCP {@link Connection} stays open alongside for commands and the stop message.
+ *
+ * Each datagram is a 4 byte big-endian sequence number followed by one
+ * normal binary frame. Datagrams may arrive out of order or not at all,
+ * so the computer should drop any frame whose sequence number isn't newer
+ * than the last one it used (see {@link #isNewer(int, int)}).
+ * @author william
+ *
+ */
+public class DatagramSender implements Closeable, LogTag {
+
+	public static final int SEQUENCE_SIZE = 4;
+
+	/**
+	 * IPTOS_LOWDELAY
+	 */
+	private static final int TRAFFIC_CLASS = 0x10;
+
+	private final DatagramSocket socket;
+	private final DatagramPacket packet;
+	private byte[] buffer = new byte[0];
+
+	private int sequence;
+
+	public DatagramSender(InetAddress host, int port) throws SocketException {
+		socket = new DatagramSocket();
+		try {
+			socket.setTrafficClass(TRAFFIC_CLASS);
+		} catch (SocketException e) {
+			Log.w(TAG, "Failed to set datagram traffic class", e);
+		}
+		socket.connect(host, port);
+		packet = new DatagramPacket(buffer, 0, host, port);
+	}
+
+	/**
+	 * Sends one frame, prefixed with the next sequence number.
+	 * @param frame
+	 * @param length
+	 * @throws IOException
+	 */
+	public void send(byte[] frame, int length) throws IOException {
+		if(buffer.length < length + SEQUENCE_SIZE)
+			buffer = new byte[length + SEQUENCE_SIZE];
+		final int seq = ++sequence;
+		buffer[0] = (byte)(seq >>> 24);
+		buffer[1] = (byte)(seq >>> 16);
+		buffer[2] = (byte)(seq >>> 8);
+		buffer[3] = (byte)seq;
+		System.arraycopy(frame, 0, buffer, SEQUENCE_SIZE, length);
+		packet.setData(buffer, 0, length + SEQUENCE_SIZE);
+		socket.send(packet);
+	}
+
+	/**
+	 * Returns <code>true</code> if <code>sequence</code> came after <code>last</code>,
+	 * allowing for the sequence number wrapping around.
+	 */
+	public static boolean isNewer(int sequence, int last) {
+		return sequence - last > 0;
+	}
+
+	@Override
+	public void close() {
+		socket.close();
+	}
+}
@@ -0,0 +1,150 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+/**
+ * Paces the send loop using absolute deadlines taken from {@link System#nanoTime()}.
+ * Sleeping for a fixed interval after each frame makes the real period
+ * interval + encode + write time; ticking on deadlines keeps the period fixed
+ * however long each frame takes to send.
+ *
+ * The clock doesn't block: the loop waits on something else, such as a
+ * {@link java.nio.channels.Selector}, for {@link #nanosUntilTick()}, then calls
+ * {@link #pollTick()}. Deadlines which have already passed are skipped rather than
+ * caught up, as each frame replaces the last and a burst of late ones is no use.
+ * @author william
+ *
+ */
+public class FrameClock {
+
+	private long intervalNanos;
+
+	private long deadline;
+
+	private long ticks;
+	private long overruns;
+	private long skipped;
+
+	private long lastJitter;
+	private long maxJitter;
+	private long totalJitter;
+
+	/**
+	 * @param interval The interval between ticks IN SECONDS, as in {@link ConnectionInfo}
+	 */
+	public FrameClock(float interval) {
+		setInterval(interval);
+	}
+
+	/**
+	 * Sets the first deadline to be one interval from now.
+	 */
+	public void start() {
+		deadline = System.nanoTime() + intervalNanos;
+	}
+
+	/**
+	 * Changes the tick interval. Takes effect from the next deadline onwards.
+	 * @param interval The new interval IN SECONDS
+	 */
+	public void setInterval(float interval) {
+		intervalNanos = Math.max(1, (long)(interval * 1000f * 1000f * 1000f));
+	}
+
+	public float getInterval() {
+		return (float)intervalNanos / 1000f / 1000f / 1000f;
+	}
+
+	/**
+	 * Ticks if the deadline has passed, moving it on by one interval.
+	 * A tick counts as an overrun if it is handled a whole interval late.
+	 * @return <code>true</code> if a deadline has passed, in which case the clock has ticked.
+	 */
+	public boolean pollTick() {
+		final long now = System.nanoTime();
+		if(deadline - now > 0) return false;
+		if(now - deadline >= intervalNanos) overruns++;
+		tick(now);
+		return true;
+	}
+
+	/**
+	 * Returns the time until the next deadline in nanoseconds, or 0 if it has passed.
+	 */
+	public long nanosUntilTick() {
+		return Math.max(0, deadline - System.nanoTime());
+	}
+
+	private void tick(long now) {
+		lastJitter = now - deadline;
+		if(lastJitter > maxJitter) maxJitter = lastJitter;
+		totalJitter += lastJitter;
+		ticks++;
+
+		deadline += intervalNanos;
+		if(deadline <= now) {
+			// Still behind after this tick, so carry on from the next deadline in the future
+			final long behind = (now - deadline) / intervalNanos + 1;
+			deadline += behind * intervalNanos;
+			skipped += behind;
+		}
+	}
+
+	/**
+	 * Returns the number of ticks so far
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Returns the number of ticks handled a whole interval or more after their deadline.
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Returns the number of deadlines that were dropped
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Returns how late the last tick was compared to its deadline, in nanoseconds.
+	 */
+	public long getLastJitter() {
+		return lastJitter;
+	}
+
+	public long getMaxJitter() {
+		return maxJitter;
+	}
+
+	public long getMeanJitter() {
+		return ticks == 0 ? 0 : totalJitter / ticks;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d ticks, %d overruns, %d skipped, jitter mean %.2fms max %.2fms",
+				ticks, overruns, skipped,
+				(float)getMeanJitter() / 1000f / 1000f,
+				(float)maxJitter / 1000f / 1000f);
+	}
+}
@@ -0,0 +1,207 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import uk.digitalsquid.droidpad.serialise.FrameEncoder;
+import uk.digitalsquid.droidpad.serialise.TextEncoder;
+
+/**
+ * Encodes each tick's state for every session at once. The engine reads the
+ * sensors and items once per tick and gives them to {@link #begin(AnalogueData, InputSnapshot)};
+ * each format is then encoded the first time a session asks for it, and every
+ * other session using the same format is given the same bytes.
+ *
+ * Delta frames depend on what each computer has already been sent, so sessions
+ * encode those themselves from {@link #getAnalogue()} and {@link #getInput()}.
+ *
+ * Only used on the engine's thread.
+ * @author william
+ *
+ */
+final class FrameProducer {
+
+	/**
+	 * One encoded frame. Only valid until the next tick.
+	 */
+	static final class Frame {
+		private byte[] buffer;
+		private int length;
+		private long tick = -1;
+
+		byte[] getBuffer() {
+			return buffer;
+		}
+
+		int getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * Binary frames come in one variant for each combination of these, as indexes into the arrays below
+	 */
+	private static final int VARIANT_SAMPLES = 0x1;
+	private static final int VARIANT_TIMESTAMPS = 0x2;
+	private static final int VARIANTS = 4;
+
+	private final FrameEncoder[] fullEncoders = new FrameEncoder[VARIANTS];
+	private final FrameEncoder[] compactEncoders = new FrameEncoder[VARIANTS];
+	private final TextEncoder textEncoder = new TextEncoder();
+
+	private final Frame[] full = new Frame[VARIANTS];
+	private final Frame[] compact = new Frame[VARIANTS];
+	private final Frame text = new Frame();
+
+	private AnalogueData analogue;
+	private InputSnapshot input;
+	private long tick;
+
+	private byte[] layoutDescription;
+	private long layoutTick = -1;
+
+	/**
+	 * Tracks how much encoding was saved, for the log
+	 */
+	private long encoded, shared;
+
+	FrameProducer() {
+		for(int variant = 0; variant < VARIANTS; variant++) {
+			fullEncoders[variant] = createEncoder(variant);
+			compactEncoders[variant] = createEncoder(variant);
+			full[variant] = new Frame();
+			compact[variant] = new Frame();
+		}
+	}
+
+	private static FrameEncoder createEncoder(int variant) {
+		FrameEncoder encoder = new FrameEncoder();
+		encoder.setSendSamples((variant & VARIANT_SAMPLES) != 0);
+		encoder.setSendTimestamps((variant & VARIANT_TIMESTAMPS) != 0);
+		return encoder;
+	}
+
+	private static int getVariant(boolean samples, boolean timestamps) {
+		return (samples ? VARIANT_SAMPLES : 0) | (timestamps ? VARIANT_TIMESTAMPS : 0);
+	}
+
+	/**
+	 * Starts a new tick. Frames from the previous tick are no longer valid.
+	 * @param input The item state which has just been read
+	 */
+	void begin(AnalogueData analogue, InputSnapshot input) {
+		this.analogue = analogue;
+		this.input = input;
+		tick++;
+	}
+
+	AnalogueData getAnalogue() {
+		return analogue;
+	}
+
+	InputSnapshot getInput() {
+		return input;
+	}
+
+	/**
+	 * Returns this tick's full binary frame.
+	 * @param samples Whether to include the sensor samples
+	 * @param timestamps Whether to include the sequence number and capture time
+	 */
+	Frame getFull(boolean samples, boolean timestamps) {
+		final int variant = getVariant(samples, timestamps);
+		final Frame frame = full[variant];
+		if(isCurrent(frame)) return frame;
+		final FrameEncoder encoder = fullEncoders[variant];
+		encoder.setInput(input);
+		frame.length = encoder.encode(analogue);
+		frame.buffer = encoder.getBuffer();
+		return frame;
+	}
+
+	/**
+	 * Returns this tick's compact frame, which matches {@link #getLayoutDescription()}.
+	 * @param samples Whether to include the sensor samples
+	 * @param timestamps Whether to include the sequence number and capture time
+	 */
+	Frame getCompact(boolean samples, boolean timestamps) {
+		final int variant = getVariant(samples, timestamps);
+		final Frame frame = compact[variant];
+		if(isCurrent(frame)) return frame;
+		final FrameEncoder encoder = compactEncoders[variant];
+		encoder.setInput(input);
+		frame.length = encoder.encodeCompact(analogue);
+		frame.buffer = encoder.getBuffer();
+		return frame;
+	}
+
+	/**
+	 * Returns the layout description for this tick's compact frames. A new array is
+	 * only created when the items change, so a session which keeps the last one it
+	 * sent only has to compare references to know whether to send it again.
+	 */
+	byte[] getLayoutDescription() {
+		if(layoutTick == tick) return layoutDescription;
+		layoutTick = tick;
+		// Only this encoder's idea of the layout is used, for every compact variant
+		final FrameEncoder encoder = compactEncoders[0];
+		encoder.setInput(input);
+		if(layoutDescription == null || encoder.layoutChanged())
+			layoutDescription = encoder.createLayoutDescription();
+		return layoutDescription;
+	}
+
+	/**
+	 * Returns this tick's line of the text protocol.
+	 */
+	Frame getText() {
+		if(isCurrent(text)) return text;
+		text.length = textEncoder.encode(analogue, input);
+		text.buffer = textEncoder.getBuffer();
+		return text;
+	}
+
+	/**
+	 * Returns <code>true</code> if the frame has already been encoded this tick,
+	 * and otherwise marks it as about to be.
+	 */
+	private boolean isCurrent(Frame frame) {
+		if(frame.tick == tick) {
+			shared++;
+			return true;
+		}
+		frame.tick = tick;
+		encoded++;
+		return false;
+	}
+
+	/**
+	 * Returns the number of frames encoded by this producer.
+	 */
+	long getEncodedFrames() {
+		return encoded;
+	}
+
+	/**
+	 * Returns the number of times a session was given a frame which had already
+	 * been encoded for another session.
+	 */
+	long getSharedFrames() {
+		return shared;
+	}
+}
@@ -0,0 +1,148 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+/**
+ * Keeps the round trip times and clock offsets of the last {@link #WINDOW}
+ * ping/pong exchanges with a computer, and a histogram of the round trip times.
+ * All times are in microseconds.
+ * @author william
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The number of recent samples kept
+	 */
+	public static final int WINDOW = 64;
+
+	/**
+	 * Upper bounds of each bucket, in microseconds. The last bucket holds everything slower.
+	 */
+	private static final long[] BUCKET_LIMITS = {
+		1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000,
+	};
+
+	private final long[] rtts = new long[WINDOW];
+	private final long[] offsets = new long[WINDOW];
+	private final int[] buckets = new int[BUCKET_LIMITS.length + 1];
+	private int count;
+	private int next;
+
+	/**
+	 * Adds the result of a ping. If the computer's clock is <code>hostTime</code>
+	 * when the device's clock is <code>deviceTime</code>, the offset is
+	 * <code>hostTime - deviceTime</code>.
+	 * @param rtt The round trip time
+	 * @param offset The estimated offset of the computer's clock from the device's
+	 */
+	public void add(long rtt, long offset) {
+		if(count == WINDOW)
+			buckets[getBucket(rtts[next])]--;
+		else
+			count++;
+		rtts[next] = rtt;
+		offsets[next] = offset;
+		buckets[getBucket(rtt)]++;
+		next = (next + 1) % WINDOW;
+	}
+
+	private static int getBucket(long rtt) {
+		for(int i = 0; i < BUCKET_LIMITS.length; i++) {
+			if(rtt <= BUCKET_LIMITS[i]) return i;
+		}
+		return BUCKET_LIMITS.length;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of recent samples in bucket <code>i</code>.
+	 */
+	public int getBucketCount(int i) {
+		return buckets[i];
+	}
+
+	public static int getBucketTotal() {
+		return BUCKET_LIMITS.length + 1;
+	}
+
+	/**
+	 * Returns the upper bound of bucket <code>i</code>, or {@link Long#MAX_VALUE} for the last.
+	 */
+	public static long getBucketLimit(int i) {
+		return i < BUCKET_LIMITS.length ? BUCKET_LIMITS[i] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket which contains the given fraction
+	 * of recent round trips, eg. 0.5 for the median.
+	 */
+	public long getPercentile(float fraction) {
+		if(count == 0) return 0;
+		int target = Math.max(1, (int)Math.ceil(fraction * count));
+		int seen = 0;
+		for(int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if(seen >= target) return getBucketLimit(i);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public long getLastRtt() {
+		if(count == 0) return 0;
+		return rtts[(next + WINDOW - 1) % WINDOW];
+	}
+
+	public long getMinRtt() {
+		return count == 0 ? 0 : rtts[getFastest()];
+	}
+
+	/**
+	 * Returns the clock offset measured by the fastest recent round trip,
+	 * which was the least affected by queueing.
+	 */
+	public long getOffset() {
+		return count == 0 ? 0 : offsets[getFastest()];
+	}
+
+	private int getFastest() {
+		int best = 0;
+		for(int i = 1; i < count; i++) {
+			if(rtts[i] < rtts[best]) best = i;
+		}
+		return best;
+	}
+
+	@Override
+	public String toString() {
+		if(count == 0) return "no samples";
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d samples, rtt min %.1fms, offset %dus;",
+				count, (float)getMinRtt() / 1000f, getOffset()));
+		for(int i = 0; i < buckets.length; i++) {
+			if(buckets[i] == 0) continue;
+			if(i < BUCKET_LIMITS.length)
+				sb.append(String.format(" <=%dms:%d", BUCKET_LIMITS[i] / 1000, buckets[i]));
+			else
+				sb.append(String.format(" >%dms:%d", BUCKET_LIMITS[i - 1] / 1000, buckets[i]));
+		}
+		return sb.toString();
+	}
+}
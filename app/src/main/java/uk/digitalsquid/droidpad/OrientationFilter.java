@@ -0,0 +1,240 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+/**
+ * Tracks the phone's orientation as a quaternion, and from it how far the phone
+ * has turned about the vertical axis, for absolute mouse mode.
+ *
+ * The gyroscope is integrated using the sensor's own event timestamps, and
+ * gravity gently pulls the estimate back to level to stop it drifting
+ * (a Mahony complementary filter). If the phone has a rotation vector sensor,
+ * which does this fusion in hardware, its orientation is used instead while it
+ * is sending events.
+ *
+ * Turning is measured about the world's vertical axis, so it is the same however
+ * the phone is held. It is accumulated rather than wrapped, so whole turns count.
+ *
+ * Nothing is allocated after construction. Updates must all come from one thread;
+ * {@link #getHeading()} can be called from any.
+ * @author william
+ *
+ */
+public class OrientationFilter {
+
+	/**
+	 * How strongly gravity corrects the orientation, in rad/s per unit of error
+	 */
+	public static final float PROPORTIONAL_GAIN = 1f;
+	/**
+	 * How quickly gravity corrects the gyroscope's bias about the horizontal axes
+	 */
+	public static final float INTEGRAL_GAIN = 0.02f;
+
+	/**
+	 * Gaps between gyroscope events longer than this, in nanoseconds, are skipped
+	 * rather than integrated, as the sensor was probably paused.
+	 */
+	static final long MAX_INTERVAL = 200L * 1000L * 1000L;
+
+	/**
+	 * How long after the last rotation vector event the gyroscope takes over again, in nanoseconds
+	 */
+	static final long HARDWARE_TIMEOUT = 500L * 1000L * 1000L;
+
+	/**
+	 * Gravity readings further than this from 1g (as a fraction) are mostly the
+	 * user moving the phone, so aren't used for correction.
+	 */
+	private static final float GRAVITY_TOLERANCE = 0.3f;
+	private static final float STANDARD_GRAVITY = 9.80665f;
+
+	/**
+	 * The orientation, rotating the phone's axes onto the world's, where z is up
+	 */
+	private float qw = 1, qx, qy, qz;
+	private boolean levelled;
+
+	/**
+	 * The last usable gravity reading, normalised
+	 */
+	private float gx, gy, gz;
+	private boolean hasGravity;
+
+	/**
+	 * Gyroscope bias estimated from gravity
+	 */
+	private float biasX, biasY, biasZ;
+
+	private long lastGyro;
+	private long lastHardware;
+	private boolean hardware;
+
+	private volatile float heading;
+
+	/**
+	 * Gives a gravity reading, in the phone's axes. Accelerometer readings can
+	 * be used too; they are ignored while the phone is being moved sharply.
+	 */
+	public void updateGravity(float x, float y, float z) {
+		final float magnitude = (float)Math.sqrt(x * x + y * y + z * z);
+		if(Math.abs(magnitude - STANDARD_GRAVITY) > STANDARD_GRAVITY * GRAVITY_TOLERANCE) return;
+		gx = x / magnitude;
+		gy = y / magnitude;
+		gz = z / magnitude;
+		hasGravity = true;
+		if(!levelled && !hardware) level();
+	}
+
+	/**
+	 * Sets the orientation straight from gravity, the first time there is a reading.
+	 * This is the shortest rotation from the measured up to the world's up.
+	 */
+	private void level() {
+		if(gz < -0.999f) {
+			// Upside down, so any horizontal axis will do
+			set(0, 1, 0, 0);
+		} else {
+			// Half way between the two vectors: (1 + g.z, g x z)
+			set(1 + gz, gy, -gx, 0);
+		}
+		levelled = true;
+	}
+
+	/**
+	 * Gives a gyroscope reading, in rad/s in the phone's axes.
+	 * @param timestamp When the reading was taken, in nanoseconds, as in the sensor event
+	 * @return The time since the last reading in seconds, or 0 if this is the first
+	 */
+	public float updateGyroscope(long timestamp, float x, float y, float z) {
+		final long interval = timestamp - lastGyro;
+		final boolean first = lastGyro == 0;
+		if(!first && interval <= 0) return 0; // Out of order
+		lastGyro = timestamp;
+		if(first || interval > MAX_INTERVAL) return 0;
+		final float dt = (float)interval / 1000f / 1000f / 1000f;
+
+		if(hardware && timestamp - lastHardware > HARDWARE_TIMEOUT) hardware = false;
+		if(hardware) return dt;
+
+		if(hasGravity) {
+			// The error is the rotation between where gravity is and where we think up is
+			final float ux = 2 * (qx * qz - qw * qy);
+			final float uy = 2 * (qy * qz + qw * qx);
+			final float uz = 1 - 2 * (qx * qx + qy * qy);
+			final float ex = gy * uz - gz * uy;
+			final float ey = gz * ux - gx * uz;
+			final float ez = gx * uy - gy * ux;
+			biasX += INTEGRAL_GAIN * ex * dt;
+			biasY += INTEGRAL_GAIN * ey * dt;
+			biasZ += INTEGRAL_GAIN * ez * dt;
+			x += PROPORTIONAL_GAIN * ex + biasX;
+			y += PROPORTIONAL_GAIN * ey + biasY;
+			z += PROPORTIONAL_GAIN * ez + biasZ;
+		}
+
+		// Rotate by the angle turned this step, about the phone's axes
+		final float rate = (float)Math.sqrt(x * x + y * y + z * z);
+		if(rate == 0) return dt;
+		final float half = rate * dt / 2;
+		final float s = (float)Math.sin(half) / rate;
+		final float dw = (float)Math.cos(half), dx = x * s, dy = y * s, dz = z * s;
+		set(qw * dw - qx * dx - qy * dy - qz * dz,
+				qw * dx + qx * dw + qy * dz - qz * dy,
+				qw * dy - qx * dz + qy * dw + qz * dx,
+				qw * dz + qx * dy - qy * dx + qz * dw);
+		return dt;
+	}
+
+	/**
+	 * Gives a reading from a rotation vector sensor, which replaces the gyroscope
+	 * and gravity until it stops sending events.
+	 * @param timestamp When the reading was taken, in nanoseconds, as in the sensor event
+	 * @param values The event's values: x, y, z and optionally the scalar part
+	 */
+	public void updateRotationVector(long timestamp, float[] values) {
+		final float x = values[0], y = values[1], z = values[2];
+		final float w = values.length > 3 ? values[3] :
+			(float)Math.sqrt(Math.max(0, 1 - x * x - y * y - z * z));
+		if(!hardware) {
+			// The sensor's idea of which way is forward is unrelated to ours
+			hardware = true;
+			qw = w;
+			qx = x;
+			qy = y;
+			qz = z;
+			normalise();
+		} else
+			set(w, x, y, z);
+		levelled = true;
+		lastHardware = timestamp;
+	}
+
+	/**
+	 * Moves to a new orientation, adding the turn about the vertical axis to the heading.
+	 * Doesn't need to be normalised.
+	 */
+	private void set(float w, float x, float y, float z) {
+		final float ow = qw, ox = qx, oy = qy, oz = qz;
+		qw = w;
+		qx = x;
+		qy = y;
+		qz = z;
+		normalise();
+		if(!levelled) return;
+		// The change in the world's frame, new * conjugate(old), then its twist about z
+		float cw = qw * ow + qx * ox + qy * oy + qz * oz;
+		float cz = -qw * oz - qx * oy + qy * ox + qz * ow;
+		if(cw < 0) {
+			cw = -cw;
+			cz = -cz;
+		}
+		heading += 2 * (float)Math.atan2(cz, cw);
+	}
+
+	private void normalise() {
+		final float norm = (float)Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+		qw /= norm;
+		qx /= norm;
+		qy /= norm;
+		qz /= norm;
+	}
+
+	/**
+	 * Returns how far the phone has turned about the vertical axis, in radians,
+	 * anticlockwise when looking down.
+	 */
+	public float getHeading() {
+		return heading;
+	}
+
+	/**
+	 * Writes the direction the filter thinks is up, in the phone's axes, to <code>dest</code>.
+	 */
+	public void getUp(float[] dest) {
+		dest[0] = 2 * (qx * qz - qw * qy);
+		dest[1] = 2 * (qy * qz + qw * qx);
+		dest[2] = 1 - 2 * (qx * qx + qy * qy);
+	}
+
+	/**
+	 * Returns <code>true</code> while the orientation comes from a rotation vector sensor.
+	 */
+	public boolean isUsingHardware() {
+		return hardware;
+	}
+}
@@ -32,6 +32,7 @@ import android.util.Log;
 public class Pairing implements LogTag {
 	
 	private final PairedDevices pairingDB;
+	private final TlsSessionCache sessionCache = new TlsSessionCache();
 	
 	public Pairing(Context context) {
 		pairingDB = new PairedDevices(context);
@@ -154,6 +155,7 @@ public class Pairing implements LogTag {
 			throw new IllegalArgumentException("Incorrect format for pairing string", e);
 		}
 		pairingDB.addPairing(computerId, computerName, deviceId, psk);
+		sessionCache.invalidate(computerId); // Made with the old PSK
 		return new DevicePair(computerId, computerName, deviceId, psk);
 	}
 	
@@ -171,9 +173,17 @@ public class Pairing implements LogTag {
 			throw new IllegalArgumentException("Incorrect format for pairing string", e);
 		}
 		pairingDB.addPairing(computerId, computerName, deviceId, psk);
+		sessionCache.invalidate(computerId); // Made with the old PSK
 		return new DevicePair(computerId, computerName, deviceId, psk);
 	}
 	
+	/**
+	 * Returns the TLS sessions which can be resumed with paired computers.
+	 */
+	public TlsSessionCache getSessionCache() {
+		return sessionCache;
+	}
+	
 	public DevicePair findDevicePair(String computerId) {
 		try {
 			return findDevicePair(UUID.fromString(computerId));
@@ -16,388 +16,419 @@
 
 package uk.digitalsquid.droidpad;
 
-import java.io.BufferedOutputStream;
-import java.io.Closeable;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
 import java.net.SocketException;
+import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.UUID;
 
+import org.spongycastle.crypto.tls.CipherSuite;
 import org.spongycastle.crypto.tls.PSKTlsClient;
 import org.spongycastle.crypto.tls.TlsClientProtocol;
+import org.spongycastle.crypto.tls.TlsPSKIdentity;
+import org.spongycastle.crypto.tls.TlsSession;
 
-import uk.digitalsquid.droidpad.SecureConnection.Progress;
-import uk.digitalsquid.droidpad.buttons.AnalogueData;
-import uk.digitalsquid.droidpad.buttons.Button;
-import uk.digitalsquid.droidpad.buttons.Item;
-import uk.digitalsquid.droidpad.buttons.Slider;
+import uk.digitalsquid.droidpad.Pairing.DevicePair;
 import uk.digitalsquid.droidpad.serialise.BinarySerialiser;
-import uk.digitalsquid.ext.Base64;
-import android.annotation.SuppressLint;
-import android.os.AsyncTask;
-import android.os.Build;
+import uk.digitalsquid.droidpad.serialise.DeltaState;
+import uk.digitalsquid.droidpad.transport.Transport;
 import android.util.Log;
 
 /**
  * This is an improved version of the {@link Connection} class. It enforces encryption to be used,
  * operates on a different port and only uses the new (binary) protocol. The old
  * {@link Connection} class is to be phased out in the future.
+ *
+ * TLS is run in non-blocking mode: bytes from the socket are offered to the
+ * {@link TlsClientProtocol}, and whatever it produces is queued on the socket.
  * @author william
  *
  */
-public class SecureConnection extends AsyncTask<ConnectionInfo, Progress, Void> implements LogTag {
-	
-	public static final int STATE_CONNECTED = 1;
-	public static final int STATE_WAITING = 2;
-	public static final int STATE_CONNECTION_LOST = 3;
-	
-	public static final class Progress {
-		public int status;
-		public String connectedPc;
-		
-		public Progress(int status, String connectedPc) {
-			this.status = status;
-			this.connectedPc = connectedPc;
-		}
-	}
-	
-	private App app;
-	
-	private ConnectionInfo info;
-	private boolean idling = true;
-	
+public class SecureConnection extends Session {
+
 	/**
-	 * A message from the client
-	 * @author william
+	 * The cipher suites offered, most preferred first. All of them use DHE or ECDHE,
+	 * so that old traffic can't be decrypted if a PSK leaks.
 	 *
+	 * AEAD suites come first, as each small frame record costs far less to seal with
+	 * GCM or CCM than with CBC and a separate HMAC. This TLS library only has them with
+	 * DHE_PSK. The ECDHE_PSK CBC suites follow for computers without AEAD, as their key
+	 * exchange is cheaper than finite field DH; the SHA256 one needs TLS 1.2, so records
+	 * aren't split. The last are the suites {@link PSKTlsClient} offers by default,
+	 * for older computers.
 	 */
-	static class ClientMessage {
-		public static final int CMD_STOP = 1;
-		int what;
-		public ClientMessage(int what) {
-			this.what = what;
-		}
+	static final int[] DEFAULT_CIPHER_SUITES = {
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_GCM_SHA256,
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_CCM,
+		CipherSuite.TLS_ECDHE_PSK_WITH_AES_128_CBC_SHA256,
+		CipherSuite.TLS_ECDHE_PSK_WITH_AES_128_CBC_SHA,
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_CBC_SHA256,
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_CBC_SHA,
+	};
+
+	/**
+	 * Offered when the user doesn't need forward secrecy: plain PSK suites, which
+	 * have no key exchange to do, then {@link #DEFAULT_CIPHER_SUITES} for computers
+	 * which don't allow them.
+	 */
+	static final int[] FAST_CIPHER_SUITES = {
+		CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256,
+		CipherSuite.TLS_PSK_WITH_AES_128_CCM,
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_GCM_SHA256,
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_CCM,
+		CipherSuite.TLS_ECDHE_PSK_WITH_AES_128_CBC_SHA256,
+		CipherSuite.TLS_ECDHE_PSK_WITH_AES_128_CBC_SHA,
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_CBC_SHA256,
+		CipherSuite.TLS_DHE_PSK_WITH_AES_128_CBC_SHA,
+	};
+
+	private TlsClientProtocol protocol;
+	private boolean handshakeComplete;
+	private long handshakeStart;
+
+	/**
+	 * The computer, as given in the identity hint of a full handshake
+	 */
+	private UUID computerId;
+	/**
+	 * The pairing with {@link #computerId}, or <code>null</code> if it isn't paired.
+	 * Only changed by this session's handshake on the engine thread; DevicePair is
+	 * immutable, so it can be handed to the DTLS handshake on the control thread.
+	 */
+	private DevicePair credentials;
+
+	private DeltaState deltaState = null; // Non-null when in delta mode
+	private boolean compact = false;
+	private SecureDatagramSender datagram = null; // Non-null when frames are sent by DTLS
+
+	private byte[] tlsOutput = new byte[4096];
+	/**
+	 * The number of TLS records frames have been sent in
+	 */
+	private long frameRecords;
+	private boolean warnedSplit;
+	private final byte[] input = new byte[READ_BUFFER_SIZE];
+	/**
+	 * Received bytes for TLS, which only takes whole arrays. TLS copies them before
+	 * offerInput returns, so this is reused while reads stay the same length.
+	 */
+	private byte[] received = new byte[0];
+	private final CommandParser parser = new CommandParser(this, false);
+
+	SecureConnection(ConnectionEngine engine, ConnectionInfo info, Transport transport) {
+		super(engine, info, transport);
 	}
-	private ConcurrentLinkedQueue<ClientMessage> clientMessages;
-	
+
 	@Override
-	protected void onPreExecute() {
-		super.onPreExecute();
-		
+	void onConnected() throws IOException {
+		// We are always encrypting data here
+		Log.v(TAG, "Setting up SSL connection");
+		handshakeStart = System.nanoTime();
+		protocol = new TlsClientProtocol(new SecureRandom());
+		final InetAddress address = transport.getPeerAddress();
+		// Sessions are cached by address, so can't be for transports without one
+		final TlsSessionCache cache = address != null ? info.sessionCache : null;
+		final TlsSession offered = cache != null ? cache.find(address) : null;
+		final int[] cipherSuites = getCipherSuites();
+		PSKTlsClient tlsClient = new PSKTlsClient(identity) {
+			@Override
+			public int[] getCipherSuites() {
+				return cipherSuites;
+			}
+
+			@Override
+			public TlsSession getSessionToResume() {
+				return offered;
+			}
+
+			@Override
+			public void notifyHandshakeComplete() throws IOException {
+				super.notifyHandshakeComplete();
+				handshakeComplete = true;
+				final long time = System.nanoTime() - handshakeStart;
+				final TlsSession session = context.getResumableSession();
+				final boolean resumed = offered != null && session != null &&
+						Arrays.equals(offered.getSessionID(), session.getSessionID());
+				Log.v(TAG, String.format("%s handshake completed in %.1fms, using cipher suite 0x%04x",
+						resumed ? "Abbreviated" : "Full", (float)time / 1000f / 1000f, selectedCipherSuite));
+				if(cache == null) return;
+				cache.addHandshake(time, resumed);
+				if(resumed) {
+					computerId = cache.findComputer(offered);
+					credentials = computerId != null ? info.callbacks.findDevicePair(computerId) : null;
+				}
+				if(!resumed && session != null && computerId != null)
+					cache.put(computerId, address, session);
+				Log.i(TAG, "TLS handshakes: " + cache);
+			}
+		};
+		Log.v(TAG, "Attempting handshake");
+		protocol.connect(tlsClient);
+		flushTls();
 	}
 
-	@Override
-	protected Void doInBackground(ConnectionInfo... infos) {
-		info = infos[0];
-		Log.i(TAG, "Secure connection being created on " + info.securePort);
-		ServerSocket serverSocket = createServerSocket(info.securePort);
-		if(serverSocket == null) return null;
-		Log.i(TAG, "Created ServerSocket");
-		
-		app = (App) info.callbacks.getApplication();
-		
-		while(!isCancelled() && isRequired() && acceptSession(serverSocket));
-		
-		try {
-			serverSocket.close();
-		} catch (IOException e) { }
-		
-		Log.i(TAG, "Connection thread ending");
-		
-		return null;
+	private int[] getCipherSuites() {
+		return info.cipherSuites != null ? info.cipherSuites : DEFAULT_CIPHER_SUITES;
 	}
-	
-	private ServerSocket createServerSocket(int port) {
-		ServerSocket ss = null;
-		while(!isCancelled()) {
+
+	/**
+	 * Looks up the pairing with the computer from the identity hint of this
+	 * session's handshake, so each session has its own credentials.
+	 */
+	private final TlsPSKIdentity identity = new TlsPSKIdentity() {
+		@Override
+		public void skipIdentityHint() {
+			Log.e(TAG, "Computer didn't send an identity hint");
+			computerId = null;
+			credentials = null;
+		}
+
+		@Override
+		public void notifyIdentityHint(byte[] psk_identity_hint) {
 			try {
-				ss = new ServerSocket(port);
-				ss.setSoTimeout(4000);
-				return ss;
-			} catch (IOException e) {
-				Log.e(TAG, "Failed to create server socket", e);
-				safeSleep(500);
+				computerId = UUID.fromString(new String(psk_identity_hint));
+			} catch(NullPointerException e) {
+				Log.e(TAG, "No PSK identity given");
+				computerId = null;
+			} catch(IllegalArgumentException e) {
+				Log.w(TAG, "Incorrectly formatted UUID");
+				computerId = null;
 			}
+			credentials = computerId != null ? info.callbacks.findDevicePair(computerId) : null;
+			if(computerId != null && credentials == null)
+				Log.w(TAG, "Computer " + computerId + " isn't paired");
 		}
-		return null;
-	}
-	
-	/**
-	 * This is the main execution loop; it accepts a connection then uses it until
-	 * disconnection
-	 * @param serverSocket
-	 * @return <code>false</code> if the thread should end now, <code>true</code>
-	 * if another session should be accepted.
-	 */
-	@SuppressLint("NewApi")
-	private boolean acceptSession(ServerSocket serverSocket) {
-		idling = true;
-		Socket socket = acceptConnection(serverSocket);
-		TlsClientProtocol protocol = null;
-		if(socket == null) return true;
-		Log.i(TAG, "Socket connection created");
-		
-		try {
-			socket.setTcpNoDelay(true);
-			socket.setKeepAlive(true);
-		} catch (SocketException e) {
-			Log.w(TAG, "Failed to set socket options", e);
+
+		@Override
+		public byte[] getPSKIdentity() {
+			if(credentials == null) return "NOCREDS".getBytes();
+			return credentials.getDeviceId().toString().getBytes();
 		}
-		
-		BufferedOutputStream bufferedOutput = null;
-		DataOutputStream dataOutput = null;
-		InputStream innerInput = null;
+
+		/**
+		 * TLS overwrites the PSK with zeros once it has used it, so it is given a copy
+		 */
+		@Override
+		public byte[] getPSK() {
+			if(credentials == null) return new byte[] {};
+			return credentials.getPsk().clone();
+		}
+	};
+
+	@Override
+	void onReceived(byte[] data, int length) throws IOException {
 		try {
-			java.security.SecureRandom secureRandom = new java.security.SecureRandom();
-			// We are always encrypting data here
-			Log.v(TAG, "Setting up SSL connection");
-			protocol = new TlsClientProtocol(socket.getInputStream(), socket.getOutputStream(),secureRandom);
-			PSKTlsClient tlsClient = new PSKTlsClient(info.identity);
-			try {
-				Log.v(TAG, "Attempting handshake");
-				protocol.connect(tlsClient);
-				Log.v(TAG, "Handshake completed");
-			} catch(IOException e) {
+			if(received.length != length) received = new byte[length];
+			System.arraycopy(data, 0, received, 0, length);
+			protocol.offerInput(received);
+		} catch(IOException e) {
+			if(!handshakeComplete) {
 				// Failed to complete handshake
 				Log.e(TAG, "Failed to complete handshake", e);
 				info.callbacks.broadcastAlert(ConnectionCallbacks.ALERT_AUTH_FAILED);
-				closeConnections(socket, protocol, dataOutput, bufferedOutput);
-				return true;
 			}
-			
-			OutputStream innerOutput = protocol.getOutputStream();
-			innerInput = protocol.getInputStream();
-			
-			bufferedOutput = new BufferedOutputStream(innerOutput);
-			dataOutput = new DataOutputStream(bufferedOutput);
-			
-		} catch (IOException e) {
-			Log.e(TAG, "Failed to initialise IO streams", e);
-			closeConnections(socket, protocol, dataOutput, bufferedOutput);
-			return true; // true means we want another connection
-		}
-		
-		if(isCancelled()) return false;
-		
-		// Accumulate counts
-		int numRawDevs = 1;
-		int numAxes = 0;
-		int numButtons = 0;
-		for(Item item : info.spec.getLayout()) {
-			if(item instanceof Slider) {
-				Slider s = (Slider)item;
-				switch(s.type) {
-				case X:
-				case Y:
-					numAxes += 1; break;
-				case Both:
-					numAxes += 2; break;
-				}
-			} else if(item instanceof Button)
-				numButtons++;
+			throw e;
 		}
-		
-		try {
-			BinarySerialiser.writeConnectionInfo(dataOutput, info.spec.getMode(), numRawDevs, numAxes, numButtons);
-		} catch (IOException e) {
-			Log.e(TAG, "Error sending info to computer", e);
-			closeConnections(socket, protocol, dataOutput, bufferedOutput);
-			return true; // true means we want another connection
-		}
-		
-		if(isCancelled()) return false;
-		
-		publishProgress(new Progress(STATE_CONNECTED, socket.getInetAddress().getHostAddress()));
-		
-		// Start client response listener
-		clientMessages = new ConcurrentLinkedQueue<ClientMessage>();
-		ResponseListener responseListener = new ResponseListener();
-		// Android AsyncTask version weirdness
-		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
-			responseListener.executeOnExecutor(THREAD_POOL_EXECUTOR, innerInput);
-		else
-			responseListener.execute(innerInput);
-		
-		// Begin looping
-		idling = false;
-		while(!isCancelled()) {
-			AnalogueData analogue = new AnalogueData(
-					info.callbacks.getAccelerometerValues(),
-					info.callbacks.getGyroscopeValues(),
-					info.callbacks.getWorldRotation(),
-					info.reverseX, info.reverseY);
-			try {
-				BinarySerialiser.writeBinary(dataOutput, analogue, info.callbacks.getScreenData());
-				
-				// Reset button press overrides
-				info.callbacks.getScreenData().resetOverrides();
-				
-				safeSleep((long)(info.interval * 1000L));
-				
-				ClientMessage msg = null;
-				if((msg = clientMessages.poll()) != null) {
-					switch(msg.what) {
-					case ClientMessage.CMD_STOP:
-						Log.i(TAG, "Received STOP message from computer");
-						publishProgress(new Progress(STATE_WAITING, ""));
-						closeConnections(socket, protocol, dataOutput, bufferedOutput);
-						responseListener.cancel(true);
-						return false;
-					}
-				}
-				
-			} catch (IOException e) {
-				Log.w(TAG, "Lost connection with computer", e);
-				closeConnections(socket, protocol, dataOutput, bufferedOutput);
-				publishProgress(new Progress(STATE_CONNECTION_LOST, ""));
-				responseListener.cancel(true);
-				return true; // true means we want another connection
-			}
+		flushTls();
+
+		if(handshakeComplete && !isActive()) {
+			byte[] connectionInfo = createConnectionInfo();
+			protocol.offerOutput(connectionInfo, 0, connectionInfo.length);
+			flushTls();
+			setActive();
 		}
-		// If we get to here, user must have cancelled the loop
-		Log.i(TAG, "Sending stop signal over connection");
-		try {
-			BinarySerialiser.writeStopCommand(dataOutput);
-			publishProgress(new Progress(STATE_WAITING, ""));
-		} catch(IOException e) {
-			Log.w(TAG, "Failed to send stop message to server", e);
+
+		int available;
+		while((available = protocol.getAvailableInputBytes()) > 0) {
+			int read = protocol.readInput(input, 0, Math.min(available, input.length));
+			parser.parse(input, 0, read);
 		}
-			
-		closeConnections(socket, protocol);
-		responseListener.cancel(true);
-		
-		return false;
 	}
-	
-	class ResponseListener extends AsyncTask<InputStream, Void, Void> {
-		@Override
-		protected Void doInBackground(InputStream... params) {
-			InputStream input = params[0];
-			if(input == null) {
-				Log.e(TAG, "responseListener InputStream was null");
-				return null;
+
+	@Override
+	public void onCommand(int command, long argument, long argument2) throws IOException {
+		switch(command) {
+		case CommandParser.CMD_DELTA:
+			if(deltaState == null) {
+				Log.i(TAG, "Switching to delta mode");
+				deltaState = new DeltaState();
 			}
-			Log.i(TAG, "Starting to listen for responses");
-			DataInputStream data = new DataInputStream(input);
-			byte[] header = new byte[4];
-			while(!isCancelled()) {
-				try {
-					int read = data.read(header, 0, 4);
-					if(read == 0) continue;
-					if(read < 0) break;
-				} catch (IOException e) {
-					Log.w(TAG, "Reading connection was closed");
-					break;
-				}
-				if(Arrays.equals(BinarySerialiser.CMD_HEADER_BYTES, header)) {
-					try {
-						int command = data.readInt();
-						Log.w(TAG, "Command response message received");
-						if(clientMessages != null)
-							clientMessages.add(new ClientMessage(command));
-					} catch (IOException e) {
-						Log.w(TAG, "Failed to read command from input stream.", e);
-					}
-				} else {
-					Log.w(TAG, "Nonsense response header received: " + Base64.encodeBytes(header));
-				}
+			break;
+		case CommandParser.CMD_REQUEST_KEYFRAME:
+			if(deltaState != null) deltaState.requestKeyframe();
+			break;
+		case CommandParser.CMD_COMPACT:
+			Log.i(TAG, "Switching to compact frames");
+			compact = true;
+			break;
+		case CommandParser.CMD_SECURE_DATAGRAM:
+			if(datagram != null) break;
+			if(argument <= 0 || argument > 65535) {
+				Log.w(TAG, "Invalid datagram port requested: " + argument);
+				break;
+			}
+			if(transport.getPeerAddress() == null) {
+				Log.w(TAG, "Datagrams requested over a transport without an address");
+				break;
+			}
+			if(credentials == null) {
+				Log.w(TAG, "Secure datagrams requested without known credentials");
+				break;
 			}
-			Log.i(TAG, "Stopped listening for responses");
-			return null;
-		}
-	};
-	
-	private Socket acceptConnection(ServerSocket serverSocket) {
-		int fb = 1;
-		while(!isCancelled() && isRequired()) {
 			try {
-				return serverSocket.accept();
-			} catch (IOException e) {
-				String fbs = String.valueOf(fb);
-				if(fb % 15 == 0)
-					fbs = "FIZZBUZZ";
-				else if(fb % 5 == 0)
-					fbs = "BUZZ";
-				else if(fb % 3 == 0)
-					fbs = "FIZZ";
-				Log.v(TAG, "Connection accept timed out, retrying... (" + fbs + " retries)");
-				fb++;
+				datagram = new SecureDatagramSender(transport.getPeerAddress(), (int)argument,
+						credentials, getCipherSuites());
+				datagram.start(engine.getControlExecutor());
+				Log.i(TAG, "Sending frames by DTLS to port " + argument);
+			} catch (SocketException e) {
+				Log.w(TAG, "Failed to create datagram socket", e);
 			}
+			break;
+		default:
+			super.onCommand(command, argument, argument2);
+			break;
 		}
-		return null;
 	}
-	
-	private void safeSleep(long time) {
-		try {
-			Thread.sleep(time);
-		} catch (InterruptedException e) { }
+
+	@Override
+	protected void setFrameFormat(boolean compact, boolean delta) {
+		this.compact = compact;
+		if(!delta)
+			deltaState = null;
+		else if(deltaState == null)
+			deltaState = new DeltaState();
 	}
-	
-	private void closeConnections(Socket socket, TlsClientProtocol proto, Closeable... closeables) {
+
+	@Override
+	protected int getSupportedFeatures() {
+		return super.getSupportedFeatures() | BinarySerialiser.FEATURE_SECURE_DATAGRAM;
+	}
+
+	@Override
+	protected void sendMessage(byte[] data, int offset, int length) throws IOException {
+		protocol.offerOutput(data, offset, length);
+		flushTls();
+	}
+
+	@Override
+	void sendFrame(FrameProducer frames) throws IOException {
+		if(datagram != null && sendDatagram(frames)) return;
+		if(compact)
+			sendCompactFrame(frames);
+		else if(deltaState != null)
+			sendDeltaFrame(frames, deltaState);
+		else
+			offerFrame(frames.getFull(sendSamples, sendTimestamps));
+	}
+
+	/**
+	 * Sends a full frame by DTLS, as datagrams can be lost.
+	 * @return <code>false</code> if it must be sent over TLS instead
+	 */
+	private boolean sendDatagram(FrameProducer frames) {
+		if(datagram.hasFailed()) {
+			Log.w(TAG, "DTLS failed, sending frames over TLS");
+			stopDatagram();
+			return false;
+		}
+		if(!datagram.isConnected()) return false;
+		final FrameProducer.Frame frame = frames.getFull(sendSamples, sendTimestamps);
 		try {
-			if(proto != null) proto.close();
-			if(socket != null) socket.close();
+			if(!datagram.send(frame.getBuffer(), frame.getLength())) return false;
+			recordFrame(frame.getBuffer(), frame.getLength());
+			return true;
 		} catch (IOException e) {
-			Log.d(TAG, "Failed to close socket", e);
+			Log.w(TAG, "Failed to send datagram, falling back to TLS", e);
+			stopDatagram();
+			return false;
 		}
-		closeConnections(closeables);
 	}
-	
-	private void closeConnections(Closeable... closeables) {
-		for(Closeable c : closeables) {
-			try {
-				if(c != null) c.close();
-			} catch (IOException e) {
-				Log.d(TAG, "Failed to close closeable", e);
-			}
-		}
+
+	private void stopDatagram() {
+		datagram.close();
+		datagram = null;
+		// The computer may not have a base for deltas on the TLS connection
+		if(deltaState != null) deltaState.requestKeyframe();
 	}
-	
+
+	/**
+	 * Frames are only encrypted once they are definitely being sent, as
+	 * anything given to TLS has to go out.
+	 *
+	 * The whole frame is given to TLS in one go, so it becomes a single record
+	 * (frames are far below the 16KB record limit), which is queued as one block
+	 * and so goes out in one socket write.
+	 */
 	@Override
-	protected void onProgressUpdate(Progress... values) {
-		super.onProgressUpdate(values);
-		for(Progress p : values) {
-			info.callbacks.broadcastState(p.status, p.connectedPc);
+	protected void writeFrame(byte[] frame, int length) throws IOException {
+		protocol.offerOutput(frame, 0, length);
+		final int available = protocol.getAvailableOutputBytes();
+		if(tlsOutput.length < available) tlsOutput = new byte[available];
+		final int read = protocol.readOutput(tlsOutput, 0, available);
+		countRecords(tlsOutput, read);
+		queue(tlsOutput, 0, read);
+	}
+
+	/**
+	 * Counts the records in a block of TLS output, which always holds whole records.
+	 * Each starts with a 5 byte header ending in the length of the rest.
+	 */
+	private void countRecords(byte[] output, int length) {
+		int records = 0;
+		for(int pos = 0; pos + 5 <= length; pos += 5 + ((output[pos + 3] & 0xFF) << 8 | (output[pos + 4] & 0xFF)))
+			records++;
+		frameRecords += records;
+		if(records > 1 && !warnedSplit) {
+			// TLS 1.0 CBC suites split each write in two to prevent BEAST
+			Log.w(TAG, "Frames are being split into " + records + " TLS records; the computer may only support TLS 1.0");
+			warnedSplit = true;
 		}
 	}
 
 	@Override
-	protected void onPostExecute(Void result) {
-		super.onPostExecute(result);
-		Log.d(TAG, "Loop finished successfully");
-		info.callbacks.onConnectionFinished();
+	void sendModeSpec() throws IOException {
+		byte[] connectionInfo = createConnectionInfo();
+		sendMessage(connectionInfo, 0, connectionInfo.length);
+		if(deltaState != null) deltaState.requestKeyframe();
 	}
-	
+
 	@Override
-	protected void onCancelled() {
-		super.onCancelled();
-		Log.d(TAG, "Loop finished after being cancelled");
+	void sendStop() throws IOException {
+		Log.i(TAG, "Sending stop signal over connection");
+		byte[] stop = BinarySerialiser.createStopCommand();
+		protocol.offerOutput(stop, 0, stop.length);
+		protocol.close();
+		flushTls();
 	}
-	
+
 	/**
-	 * Closes the current connection if the thread is idling.
-	 * @return <code>true</code> if the attempt succeeded, <code>false</code> otherwise.
+	 * Moves everything TLS has produced onto the socket.
 	 */
-	public boolean attemptClose() {
-		if(idling) {
-			this.cancel(true);
-		} else {
-			// Don't
+	private void flushTls() throws IOException {
+		int available;
+		while((available = protocol.getAvailableOutputBytes()) > 0) {
+			if(tlsOutput.length < available) tlsOutput = new byte[available];
+			int read = protocol.readOutput(tlsOutput, 0, available);
+			send(tlsOutput, 0, read);
 		}
-		return idling;
 	}
-	
-	/**
-	 * Returns <code>true</code> if the service is required by the UI
-	 */
-	protected boolean isRequired() {
-		if(app != null) return app.isServiceRequired();
-		return true;
+
+	@Override
+	void close() {
+		if(datagram != null) {
+			datagram.close();
+			datagram = null;
+		}
+		if(isActive() && getFramesWritten() > 0) // Only once
+			Log.i(TAG, String.format("%.2f TLS records per frame", (float)frameRecords / getFramesWritten()));
+		super.close();
+		if(protocol != null) {
+			try {
+				protocol.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Failed to close TLS", e);
+			}
+		}
 	}
 }
@@ -0,0 +1,178 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executor;
+
+import org.spongycastle.crypto.tls.BasicTlsPSKIdentity;
+import org.spongycastle.crypto.tls.DTLSClientProtocol;
+import org.spongycastle.crypto.tls.DTLSTransport;
+import org.spongycastle.crypto.tls.PSKTlsClient;
+import org.spongycastle.crypto.tls.ProtocolVersion;
+import org.spongycastle.crypto.tls.TlsPSKIdentity;
+import org.spongycastle.crypto.tls.UDPTransport;
+
+import uk.digitalsquid.droidpad.Pairing.DevicePair;
+import android.util.Log;
+
+/**
+ * Sends binary frames to the computer over DTLS, for when the computer has asked
+ * for encrypted datagrams on a {@link SecureConnection}. Datagrams are laid out as
+ * in {@link DatagramSender}. The TLS connection stays open alongside for commands
+ * and the stop message.
+ *
+ * DTLS never retransmits application data, so a lost frame is simply replaced by
+ * the next one. The handshake blocks, so it runs on the engine's control thread; until it has
+ * finished {@link #send(byte[], int)} refuses frames, and they should go over TLS.
+ *
+ * After a full handshake the computer sends the last flight, so once ours has
+ * finished nothing needs to be read from the socket.
+ * @author william
+ *
+ */
+public class SecureDatagramSender implements Closeable, LogTag {
+
+	/**
+	 * The largest datagram sent, to stay under a typical Ethernet or Wi-Fi MTU.
+	 */
+	private static final int MTU = 1500;
+
+	/**
+	 * IPTOS_LOWDELAY
+	 */
+	private static final int TRAFFIC_CLASS = 0x10;
+
+	private final DatagramSocket socket;
+	private final PSKTlsClient client;
+
+	private volatile DTLSTransport transport;
+	private volatile boolean failed;
+	private int sendLimit;
+
+	private byte[] buffer = new byte[0];
+	private int sequence;
+
+	/**
+	 * @param credentials The pairing used for the TLS connection. The handshake gets
+	 * its own copy of the identity and key, so shares no state with the TLS session.
+	 * @param cipherSuites The suites to offer, most preferred first
+	 */
+	public SecureDatagramSender(InetAddress host, int port, DevicePair credentials, final int[] cipherSuites) throws SocketException {
+		final TlsPSKIdentity identity = new BasicTlsPSKIdentity(
+				credentials.getDeviceId().toString().getBytes(), credentials.getPsk().clone());
+		socket = new DatagramSocket();
+		try {
+			socket.setTrafficClass(TRAFFIC_CLASS);
+		} catch (SocketException e) {
+			Log.w(TAG, "Failed to set datagram traffic class", e);
+		}
+		socket.connect(host, port);
+		client = new PSKTlsClient(identity) {
+			@Override
+			public ProtocolVersion getClientVersion() {
+				return ProtocolVersion.DTLSv12;
+			}
+
+			@Override
+			public ProtocolVersion getMinimumVersion() {
+				return ProtocolVersion.DTLSv10;
+			}
+
+			@Override
+			public int[] getCipherSuites() {
+				return cipherSuites;
+			}
+		};
+	}
+
+	/**
+	 * Starts the handshake in the background.
+	 * @param executor Where to run the handshake, which blocks
+	 */
+	public void start(Executor executor) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final long start = System.nanoTime();
+				try {
+					DTLSTransport dtls = new DTLSClientProtocol(new SecureRandom())
+							.connect(client, new UDPTransport(socket, MTU));
+					sendLimit = dtls.getSendLimit();
+					transport = dtls; // Publishes sendLimit
+					Log.i(TAG, String.format("DTLS handshake completed in %.1fms",
+							(float)(System.nanoTime() - start) / 1000f / 1000f));
+				} catch (IOException e) {
+					if(!socket.isClosed()) Log.w(TAG, "DTLS handshake failed", e);
+					failed = true;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns <code>true</code> once the handshake has finished.
+	 */
+	public boolean isConnected() {
+		return transport != null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the handshake failed, so this will never send anything.
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * Sends one frame, prefixed with the next sequence number.
+	 * @return <code>false</code> if the frame wasn't sent, because the handshake
+	 * hasn't finished or it is too large for one datagram.
+	 */
+	public boolean send(byte[] frame, int length) throws IOException {
+		final DTLSTransport dtls = transport;
+		if(dtls == null || length + DatagramSender.SEQUENCE_SIZE > sendLimit) return false;
+		if(buffer.length < length + DatagramSender.SEQUENCE_SIZE)
+			buffer = new byte[length + DatagramSender.SEQUENCE_SIZE];
+		final int seq = ++sequence;
+		buffer[0] = (byte)(seq >>> 24);
+		buffer[1] = (byte)(seq >>> 16);
+		buffer[2] = (byte)(seq >>> 8);
+		buffer[3] = (byte)seq;
+		System.arraycopy(frame, 0, buffer, DatagramSender.SEQUENCE_SIZE, length);
+		dtls.send(buffer, 0, length + DatagramSender.SEQUENCE_SIZE);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		final DTLSTransport dtls = transport;
+		if(dtls != null) {
+			try {
+				dtls.close(); // Sends close_notify
+			} catch (IOException e) {
+				Log.d(TAG, "Failed to close DTLS", e);
+			}
+		}
+		socket.close(); // Also stops a handshake in progress
+	}
+}
@@ -0,0 +1,61 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+/**
+ * Converts sensor event timestamps to the {@link System#nanoTime()} clock which
+ * frames are timed by. Event timestamps say when each sample was taken, which
+ * can be well before it is delivered if the system is busy, but they are on
+ * their own clock (usually {@link android.os.SystemClock#elapsedRealtimeNanos()}).
+ *
+ * The difference between the clocks is estimated from when events arrive: an event
+ * can't arrive before it was taken, so the smallest difference seen is the closest.
+ * Only used on the sensor listener's thread.
+ * @author william
+ *
+ */
+public class SensorClock {
+
+	/**
+	 * Events delivered later than this, in nanoseconds, are taken to mean that the
+	 * clocks have moved apart (such as after the phone has been asleep).
+	 */
+	static final long MAX_DELAY = 1000L * 1000L * 1000L;
+
+	private long offset;
+	private boolean known;
+
+	/**
+	 * Returns when a sample was taken on the {@link System#nanoTime()} clock.
+	 * @param timestamp From the sensor event
+	 */
+	public long toNanoTime(long timestamp) {
+		return toNanoTime(timestamp, System.nanoTime());
+	}
+
+	/**
+	 * @param now When the event was delivered, from {@link System#nanoTime()}
+	 */
+	long toNanoTime(long timestamp, long now) {
+		final long difference = now - timestamp;
+		if(!known || difference < offset || difference - offset > MAX_DELAY) {
+			offset = difference;
+			known = true;
+		}
+		return timestamp + offset;
+	}
+}
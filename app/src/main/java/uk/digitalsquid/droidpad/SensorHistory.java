@@ -0,0 +1,290 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last few readings from one sensor, each with the time it was taken, so that
+ * the engine can work out the sensor's value at the time of each frame rather than
+ * reading whatever the sensor listener last wrote.
+ *
+ * Times are when each sample was taken, from the sensor event's timestamp moved
+ * onto the {@link System#nanoTime()} clock (see {@link SensorClock}), not when the
+ * listener was called, which can be much later if the system is busy.
+ *
+ * One thread (the sensor listener) adds samples, overwriting the oldest, and one
+ * other thread reads them; nothing is allocated after construction and neither
+ * side ever waits. A read which the listener overtakes is detected and retried.
+ *
+ * Each slot has a stamp: the index of the sample in it, or -1 while it is being
+ * written. Stamps, times and values are all read and written with volatile semantics,
+ * so a reader which finds the stamp of the oldest slot it read unchanged afterwards
+ * knows that nothing it read was being overwritten, as the listener always
+ * overwrites the oldest sample first.
+ * @author william
+ *
+ */
+public class SensorHistory {
+
+	/**
+	 * How a sensor's samples are turned into one value for a frame.
+	 */
+	public static enum Resampling {
+		/**
+		 * The newest sample taken at or before the frame.
+		 */
+		HOLD,
+		/**
+		 * Interpolates between the samples either side of the frame. The newest
+		 * sample is usually older than the frame, so this is done one sample period
+		 * behind it, which delays the value slightly but keeps it moving smoothly.
+		 */
+		LINEAR,
+		/**
+		 * The mean of every sample taken since the previous frame, which stops
+		 * sensors running faster than the frame rate from aliasing.
+		 */
+		AVERAGE,
+	}
+
+	/**
+	 * The number of samples kept. Enough for a frame at the slowest usual frame
+	 * rates and the fastest sensor rates.
+	 */
+	public static final int CAPACITY = 64;
+	/**
+	 * The largest number of values in each sample.
+	 */
+	public static final int MAX_WIDTH = 4;
+
+	/**
+	 * The oldest samples aren't read, as the listener may be about to overwrite them.
+	 */
+	private static final int MARGIN = 8;
+	private static final int MAX_ATTEMPTS = 4;
+
+	private static final long WRITING = -1;
+
+	private final int width;
+	private final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+	private final AtomicLongArray times = new AtomicLongArray(CAPACITY);
+	/**
+	 * The raw bits of each value, as there are no atomic float arrays
+	 */
+	private final AtomicIntegerArray values;
+	/**
+	 * Where reads are worked out, so that <code>dest</code> is only written once one succeeds
+	 */
+	private final float[] scratch = new float[MAX_WIDTH];
+
+	/**
+	 * Total samples added, written only by the adding thread.
+	 */
+	private volatile long head;
+
+	private long retries;
+
+	/**
+	 * @param width The number of values in each sample, up to {@link #MAX_WIDTH}
+	 */
+	public SensorHistory(int width) {
+		if(width < 1 || width > MAX_WIDTH) throw new IllegalArgumentException("Bad sample width " + width);
+		this.width = width;
+		values = new AtomicIntegerArray(CAPACITY * width);
+		for(int i = 0; i < CAPACITY; i++) stamps.set(i, WRITING);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Adds a sample of three values. Must only be called from one thread.
+	 * @param time When the sample was taken, on the {@link System#nanoTime()} clock;
+	 * see {@link SensorClock}
+	 */
+	public void add(long time, float x, float y, float z) {
+		add(time, x, y, z, 0);
+	}
+
+	/**
+	 * Adds a sample, ignoring any values past this history's width.
+	 * Must only be called from one thread.
+	 * @param time When the sample was taken, on the {@link System#nanoTime()} clock
+	 */
+	public void add(long time, float x, float y, float z, float w) {
+		final long h = head;
+		final int slot = (int)(h % CAPACITY);
+		stamps.set(slot, WRITING); // Readers of the old sample will see it has gone
+		times.set(slot, time);
+		final int base = slot * width;
+		values.set(base, Float.floatToRawIntBits(x));
+		if(width > 1) values.set(base + 1, Float.floatToRawIntBits(y));
+		if(width > 2) values.set(base + 2, Float.floatToRawIntBits(z));
+		if(width > 3) values.set(base + 3, Float.floatToRawIntBits(w));
+		stamps.set(slot, h);
+		head = h + 1; // Publishes the sample
+	}
+
+	/**
+	 * Works out the sensor's value at a time.
+	 * @param time From {@link System#nanoTime()}
+	 * @param window For {@link Resampling#AVERAGE}, how far back from <code>time</code>
+	 * to average over, in nanoseconds. Usually the frame interval.
+	 * @param dest Given the first {@link #getWidth()} values
+	 * @return <code>false</code> if there are no samples yet, or the listener kept
+	 * overtaking every read, in which case <code>dest</code> is left alone
+	 */
+	public boolean sample(long time, Resampling mode, long window, float[] dest) {
+		for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			final long h = head;
+			if(h == 0) return false;
+			final long oldest = Math.max(0, h - CAPACITY + MARGIN);
+			final long read;
+			switch(mode) {
+			case LINEAR:
+				read = interpolate(time, h, oldest, scratch);
+				break;
+			case AVERAGE:
+				read = average(time, window, h, oldest, scratch);
+				break;
+			case HOLD:
+			default:
+				read = find(time, h - 1, oldest);
+				copy(read, scratch);
+				break;
+			}
+			// Fine as long as the listener hasn't started on the oldest slot read since
+			if(isUnchanged(read)) {
+				System.arraycopy(scratch, 0, dest, 0, width);
+				return true;
+			}
+			retries++;
+		}
+		// The listener is adding faster than this can read; just take the newest
+		for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			final long n = head - 1;
+			copy(n, scratch);
+			if(isUnchanged(n)) {
+				System.arraycopy(scratch, 0, dest, 0, width);
+				return true;
+			}
+			retries++;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns <code>true</code> if the sample at <code>index</code> is still in its slot.
+	 */
+	private boolean isUnchanged(long index) {
+		return stamps.get((int)(index % CAPACITY)) == index;
+	}
+
+	private long time(long index) {
+		return times.get((int)(index % CAPACITY));
+	}
+
+	private float value(int slot, int v) {
+		return Float.intBitsToFloat(values.get(slot * width + v));
+	}
+
+	/**
+	 * Returns the index of the newest sample at or before <code>time</code>,
+	 * or <code>oldest</code> if they are all after it.
+	 */
+	private long find(long time, long newest, long oldest) {
+		long i = newest;
+		while(i > oldest && time(i) > time) i--;
+		return i;
+	}
+
+	private void copy(long index, float[] dest) {
+		final int slot = (int)(index % CAPACITY);
+		for(int v = 0; v < width; v++)
+			dest[v] = value(slot, v);
+	}
+
+	/**
+	 * @return The oldest index read
+	 */
+	private long interpolate(long time, long h, long oldest, float[] dest) {
+		final long newest = h - 1;
+		if(newest - oldest < 1) {
+			copy(newest, dest);
+			return newest;
+		}
+		// One sample period behind, averaged over a few samples as they are rarely evenly spaced
+		final long first = Math.max(oldest, newest - 4);
+		final long period = (time(newest) - time(first)) / (newest - first);
+		time -= period;
+
+		final long before = find(time, newest, oldest);
+		final int beforeSlot = (int)(before % CAPACITY);
+		final long beforeTime = time(before);
+		if(before == newest || beforeTime > time) {
+			// Nothing either side to interpolate between
+			copy(before, dest);
+			return Math.min(before, first);
+		}
+		final int afterSlot = (int)((before + 1) % CAPACITY);
+		final long span = time(before + 1) - beforeTime;
+		final float t = span <= 0 ? 1 : (float)(time - beforeTime) / span;
+		for(int v = 0; v < width; v++) {
+			final float a = value(beforeSlot, v);
+			dest[v] = a + (value(afterSlot, v) - a) * t;
+		}
+		return Math.min(before, first);
+	}
+
+	/**
+	 * @return The oldest index read
+	 */
+	private long average(long time, long window, long h, long oldest, float[] dest) {
+		final long last = find(time, h - 1, oldest);
+		final long start = time - window;
+		long i = last;
+		int count = 0;
+		for(int v = 0; v < width; v++) dest[v] = 0;
+		while(i >= oldest) {
+			final long sampleTime = time(i);
+			if(sampleTime <= start || sampleTime > time) break;
+			final int slot = (int)(i % CAPACITY);
+			for(int v = 0; v < width; v++)
+				dest[v] += value(slot, v);
+			count++;
+			i--;
+		}
+		if(count == 0) {
+			// Nothing new since the last frame
+			copy(last, dest);
+			return last;
+		}
+		for(int v = 0; v < width; v++)
+			dest[v] /= count;
+		return Math.max(i, oldest);
+	}
+
+	/**
+	 * Returns the number of times a read was overtaken by the listener and had to be done again.
+	 */
+	public long getRetries() {
+		return retries;
+	}
+}
@@ -0,0 +1,162 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+/**
+ * Keeps every sensor sample received between frames, so that they can all
+ * be sent rather than just the latest. One thread (the sensor listener) adds
+ * samples and one thread (the connection engine) drains them; nothing is
+ * allocated after construction and neither side ever waits.
+ *
+ * If the ring fills up, new samples are dropped until it is drained.
+ * @author william
+ *
+ */
+public class SensorRing {
+
+	public static final int TYPE_ACCELEROMETER = 1;
+	public static final int TYPE_GYROSCOPE = 2;
+
+	/**
+	 * The number of samples kept. Enough for several frames at the fastest sensor rates.
+	 */
+	public static final int CAPACITY = 256;
+
+	/**
+	 * A set of samples taken out of the ring, owned by the draining thread.
+	 */
+	public static final class Batch {
+		public final int[] types;
+		/**
+		 * From {@link System#nanoTime()}
+		 */
+		public final long[] times;
+		/**
+		 * x, y and z of each sample
+		 */
+		public final float[] values;
+		private int count;
+
+		public Batch(int capacity) {
+			types = new int[capacity];
+			times = new long[capacity];
+			values = new float[capacity * 3];
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getCapacity() {
+			return types.length;
+		}
+
+		public void clear() {
+			count = 0;
+		}
+
+		void setCount(int count) {
+			this.count = count;
+		}
+	}
+
+	private final int[] types = new int[CAPACITY];
+	private final long[] times = new long[CAPACITY];
+	private final float[] values = new float[CAPACITY * 3];
+
+	/**
+	 * Total samples added, written only by the adding thread.
+	 */
+	private volatile long head;
+	/**
+	 * Total samples drained, written only by the draining thread.
+	 */
+	private volatile long tail;
+
+	/**
+	 * Written by the adding thread, read by the draining thread
+	 */
+	private volatile long dropped;
+	private long decimated;
+
+	/**
+	 * Adds a sample. Must only be called from one thread.
+	 * @param time When the sample was taken, from {@link System#nanoTime()}
+	 * (see {@link SensorClock})
+	 */
+	public void add(int type, long time, float x, float y, float z) {
+		final long h = head;
+		if(h - tail >= CAPACITY) {
+			dropped++;
+			return;
+		}
+		final int slot = (int)(h % CAPACITY);
+		types[slot] = type;
+		times[slot] = time;
+		values[slot * 3] = x;
+		values[slot * 3 + 1] = y;
+		values[slot * 3 + 2] = z;
+		head = h + 1; // Publishes the sample
+	}
+
+	/**
+	 * Moves every sample added since the last call into <code>batch</code>.
+	 * If there are more than fit, they are thinned out evenly; the newest
+	 * sample is always kept. Must only be called from one thread.
+	 */
+	public void drainTo(Batch batch) {
+		final long t = tail;
+		final long available = head - t;
+		final int capacity = batch.getCapacity();
+		final int count = (int)Math.min(available, capacity);
+		for(int i = 0; i < count; i++) {
+			// Spread evenly over what is available, ending on the newest
+			final long index = available <= capacity ? t + i :
+				t + available - 1 - (long)(count - 1 - i) * available / count;
+			final int slot = (int)(index % CAPACITY);
+			batch.types[i] = types[slot];
+			batch.times[i] = times[slot];
+			batch.values[i * 3] = values[slot * 3];
+			batch.values[i * 3 + 1] = values[slot * 3 + 1];
+			batch.values[i * 3 + 2] = values[slot * 3 + 2];
+		}
+		batch.count = count;
+		decimated += available - count;
+		tail = t + available; // Frees the slots
+	}
+
+	/**
+	 * Forgets every sample added so far. Must only be called from the draining thread.
+	 */
+	public void skip() {
+		tail = head;
+	}
+
+	/**
+	 * Returns the number of samples dropped because the ring was full.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of samples left out of batches because there were too many.
+	 */
+	public long getDecimated() {
+		return decimated;
+	}
+}
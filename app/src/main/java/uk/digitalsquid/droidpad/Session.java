@@ -0,0 +1,644 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import uk.digitalsquid.droidpad.buttons.Button;
+import uk.digitalsquid.droidpad.buttons.Item;
+import uk.digitalsquid.droidpad.buttons.Slider;
+import uk.digitalsquid.droidpad.serialise.BinarySerialiser;
+import uk.digitalsquid.droidpad.serialise.DeltaState;
+import uk.digitalsquid.droidpad.serialise.FrameEncoder;
+import uk.digitalsquid.droidpad.transport.Transport;
+import android.util.Log;
+
+/**
+ * One connected computer. Sessions are non-blocking and are all driven from
+ * the {@link ConnectionEngine}'s thread: the engine calls into a session when its
+ * {@link Transport} is readable or writable, and once per frame.
+ * @author william
+ *
+ */
+abstract class Session implements CommandParser.Listener, LogTag {
+
+	static final int READ_BUFFER_SIZE = 1024;
+
+	/**
+	 * Limits on the frame interval the computer can ask for, in microseconds
+	 */
+	static final int MIN_INTERVAL = 1000;
+	static final int MAX_INTERVAL = 1000 * 1000;
+
+	/**
+	 * How often to ping the computer once it has shown that it understands pings, in nanoseconds
+	 */
+	static final long PING_INTERVAL = 1000L * 1000L * 1000L;
+
+	/**
+	 * With {@link BinarySerialiser#SLOW_CONSUMER_QUEUE}, the most data which can be
+	 * waiting for the computer before it is treated as lost
+	 */
+	static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+	/**
+	 * With {@link BinarySerialiser#SLOW_CONSUMER_DISCONNECT}, how long the socket
+	 * can refuse data before the computer is treated as lost, in nanoseconds
+	 */
+	static final long MAX_STALL = 2000L * 1000L * 1000L;
+
+	protected final ConnectionEngine engine;
+	protected final ConnectionInfo info;
+	protected final Transport transport;
+	private int id;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/**
+	 * Data on its way to the socket, kept in write mode (data is from 0 to position).
+	 * This holds messages which must be sent, plus frames which have already been
+	 * started (only ever one, unless frames are being queued).
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(4096);
+
+	/**
+	 * The latest frame, which is moved to {@link #pending} once that has drained.
+	 * A newer frame replaces it if it is still waiting.
+	 */
+	private byte[] mailbox = new byte[0];
+	private int mailboxLength;
+	private boolean mailboxFull;
+
+	private boolean active;
+	private boolean finished;
+	private boolean closed;
+
+	private long supersededFrames;
+
+	/**
+	 * Frames actually written, and their size before and after {@link #writeFrame(byte[], int)}
+	 */
+	private long framesWritten;
+	private long frameBytes, wireBytes;
+
+	/**
+	 * When the socket last stopped accepting data, or 0 if it is keeping up.
+	 */
+	private long stallStart;
+	private int stalls;
+	private long totalStall, maxStall;
+
+	protected int numRawDevs, numAxes, numButtons;
+
+	private final byte[] pong = new byte[BinarySerialiser.PONG_SIZE];
+	private final byte[] timedPong = new byte[BinarySerialiser.TIMED_PONG_SIZE];
+	private final byte[] ping = new byte[BinarySerialiser.PING_SIZE];
+	private final byte[] capabilities = new byte[BinarySerialiser.CAPABILITIES_SIZE];
+
+	/**
+	 * Set once the computer has negotiated {@link BinarySerialiser#FEATURE_PING},
+	 * so it will understand pings back and the device's time in pongs.
+	 */
+	private boolean pingsEnabled;
+	private long lastPing;
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * The features agreed with the computer, if it negotiated
+	 */
+	private int features;
+
+	private int slowConsumer = BinarySerialiser.SLOW_CONSUMER_LATEST;
+
+	/**
+	 * Set when the computer has asked for every sensor sample with each frame
+	 */
+	protected boolean sendSamples;
+	/**
+	 * Set when the computer has negotiated {@link BinarySerialiser#FEATURE_TIMESTAMPS}.
+	 * Older computers expect the header fields these use to be zeros.
+	 */
+	protected boolean sendTimestamps;
+
+	/**
+	 * The layout description last sent before compact frames
+	 */
+	private byte[] layoutSent;
+
+	/**
+	 * Encodes this session's delta frames; created when first needed
+	 */
+	private FrameEncoder deltaEncoder;
+
+	Session(ConnectionEngine engine, ConnectionInfo info, Transport transport) {
+		this.engine = engine;
+		this.info = info;
+		this.transport = transport;
+	}
+
+	/**
+	 * Sets the number which identifies this session in recordings.
+	 */
+	void setId(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * Called once the session has been registered with the engine.
+	 */
+	abstract void onConnected() throws IOException;
+
+	/**
+	 * Called with data received from the computer.
+	 * @param data Valid from 0 to <code>length</code>. Reused after this call returns.
+	 */
+	abstract void onReceived(byte[] data, int length) throws IOException;
+
+	/**
+	 * Sends one frame of the current state.
+	 * @param frames This tick's state, and the frames already encoded from it
+	 */
+	abstract void sendFrame(FrameProducer frames) throws IOException;
+
+	/**
+	 * Tells the computer that the connection is about to close.
+	 */
+	abstract void sendStop() throws IOException;
+
+	/**
+	 * Sends the current mode and connection info to the computer, after it has changed.
+	 */
+	abstract void sendModeSpec() throws IOException;
+
+	/**
+	 * Switches compact and delta frames on or off, as agreed by negotiation.
+	 * Unlike the commands for each, this can turn them off again.
+	 */
+	protected abstract void setFrameFormat(boolean compact, boolean delta);
+
+	/**
+	 * Called when the user has chosen a new mode. Computers which have negotiated
+	 * {@link BinarySerialiser#FEATURE_LAYOUT_CHANGE} are sent the new mode; others
+	 * are stopped, and get the new mode when they connect again.
+	 */
+	final void onSpecChanged() throws IOException {
+		if((features & BinarySerialiser.FEATURE_LAYOUT_CHANGE) != 0) {
+			sendModeSpec();
+		} else {
+			Log.i(TAG, "Computer can't change mode while connected, disconnecting it");
+			sendStop();
+			finish();
+		}
+	}
+
+	/**
+	 * Handles the commands which mean the same on every type of session.
+	 * Subclasses handle their own commands and pass the rest on to this.
+	 */
+	@Override
+	public void onCommand(int command, long argument, long argument2) throws IOException {
+		switch(command) {
+		case CommandParser.CMD_STOP:
+			Log.i(TAG, "Received STOP message from computer");
+			finish();
+			break;
+		case CommandParser.CMD_SET_INTERVAL:
+			int interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, (int)argument));
+			engine.setFrameInterval((float)interval / 1000f / 1000f);
+			break;
+		case CommandParser.CMD_PING:
+			// Only computers which asked for it get the longer pong
+			if(pingsEnabled) {
+				BinarySerialiser.writeTimedPong(timedPong, argument, getDeviceTime());
+				sendMessage(timedPong, 0, timedPong.length);
+			} else {
+				BinarySerialiser.writePong(pong, argument);
+				sendMessage(pong, 0, pong.length);
+			}
+			break;
+		case CommandParser.CMD_PONG:
+			onPong(argument, argument2);
+			break;
+		case CommandParser.CMD_NEGOTIATE:
+			negotiate((int)(argument >>> 32), (int)argument, (int)argument2);
+			break;
+		case CommandParser.CMD_SAMPLES:
+			Log.i(TAG, "Sending all sensor samples");
+			sendSamples = true;
+			break;
+		case CommandParser.CMD_SLOW_CONSUMER:
+			switch((int)argument) {
+			case BinarySerialiser.SLOW_CONSUMER_LATEST:
+			case BinarySerialiser.SLOW_CONSUMER_QUEUE:
+			case BinarySerialiser.SLOW_CONSUMER_DISCONNECT:
+				Log.i(TAG, "Slow consumer policy set to " + argument);
+				slowConsumer = (int)argument;
+				break;
+			default:
+				Log.w(TAG, "Unknown slow consumer policy requested: " + argument);
+				break;
+			}
+			break;
+		default:
+			Log.w(TAG, "Unknown command from computer: " + command);
+			break;
+		}
+	}
+
+	/**
+	 * Returns the <code>FEATURE_</code> flags from {@link BinarySerialiser} which this session supports.
+	 */
+	protected int getSupportedFeatures() {
+		return BinarySerialiser.FEATURE_DELTA |
+				BinarySerialiser.FEATURE_TIMESTAMPS |
+				BinarySerialiser.FEATURE_PING |
+				BinarySerialiser.FEATURE_SAMPLES |
+				BinarySerialiser.FEATURE_COMPACT |
+				BinarySerialiser.FEATURE_LAYOUT_CHANGE |
+				BinarySerialiser.FEATURE_SLOW_CONSUMER;
+	}
+
+	/**
+	 * Returns the current frame interval in microseconds.
+	 */
+	protected final int getFrameInterval() {
+		return (int)(engine.getFrameInterval() * 1000f * 1000f);
+	}
+
+	/**
+	 * Agrees the features which both the computer asked for and this session
+	 * supports, then tells the computer what was agreed. Everything else is
+	 * turned off, so negotiating again replaces what was agreed before.
+	 */
+	private void negotiate(int version, int requested, int interval) throws IOException {
+		version = Math.min(version, BinarySerialiser.PROTOCOL_VERSION);
+		int features = requested & getSupportedFeatures();
+		// Compact frames are always full frames
+		if((features & BinarySerialiser.FEATURE_COMPACT) != 0)
+			features &= ~BinarySerialiser.FEATURE_DELTA;
+
+		setFrameFormat((features & BinarySerialiser.FEATURE_COMPACT) != 0,
+				(features & BinarySerialiser.FEATURE_DELTA) != 0);
+		layoutSent = null; // Sent again before the next compact frame
+		sendSamples = (features & BinarySerialiser.FEATURE_SAMPLES) != 0;
+		sendTimestamps = (features & BinarySerialiser.FEATURE_TIMESTAMPS) != 0;
+		pingsEnabled = (features & BinarySerialiser.FEATURE_PING) != 0;
+		if(interval > 0)
+			onCommand(CommandParser.CMD_SET_INTERVAL, interval, 0);
+		this.features = features;
+
+		Log.i(TAG, String.format("Negotiated protocol version %d, features 0x%x", version, features));
+		BinarySerialiser.writeCapabilities(capabilities, version, features, getFrameInterval());
+		sendMessage(capabilities, 0, capabilities.length);
+	}
+
+	/**
+	 * Returns the time used for timestamps sent to the computer, in microseconds.
+	 * This is the same clock as {@link System#nanoTime()}.
+	 */
+	static long getDeviceTime() {
+		return System.nanoTime() / 1000;
+	}
+
+	/**
+	 * Pings the computer if it understands pings and one is due.
+	 * @param now From {@link System#nanoTime()}
+	 */
+	final void pingIfDue(long now) throws IOException {
+		if(!pingsEnabled || now - lastPing < PING_INTERVAL) return;
+		lastPing = now;
+		BinarySerialiser.writePing(ping, now / 1000);
+		sendMessage(ping, 0, ping.length);
+	}
+
+	/**
+	 * Called when the computer replies to one of our pings.
+	 * @param sent The device time the ping was sent at
+	 * @param hostTime The computer's time when it replied
+	 */
+	private void onPong(long sent, long hostTime) {
+		final long received = getDeviceTime();
+		final long rtt = received - sent;
+		if(rtt < 0 || sent <= 0) {
+			Log.w(TAG, "Pong from computer didn't match a ping");
+			return;
+		}
+		// Assume the reply was sent half way through the round trip
+		latency.add(rtt, hostTime - (sent + rtt / 2));
+	}
+
+	LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Sends a message (rather than a frame) to the computer. Sessions which
+	 * wrap their output override this.
+	 */
+	protected void sendMessage(byte[] data, int offset, int length) throws IOException {
+		send(data, offset, length);
+	}
+
+	/**
+	 * Called by the engine when the socket is readable.
+	 */
+	final void onReadable() throws IOException {
+		readBuffer.clear();
+		int read = transport.read(readBuffer);
+		if(read < 0) throw new EOFException("Connection closed by computer");
+		if(read > 0) onReceived(readBuffer.array(), read);
+	}
+
+	/**
+	 * Called by the engine when the socket is writable.
+	 */
+	final void onWritable() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Queues data to be sent, and sends as much as possible straight away.
+	 * Data passed to this method is always sent, in order, ahead of any frame
+	 * that hasn't been started yet.
+	 */
+	protected final void send(byte[] data, int offset, int length) throws IOException {
+		queue(data, offset, length);
+		flush();
+	}
+
+	/**
+	 * Adds data to the end of {@link #pending} without trying to send it.
+	 */
+	protected final void queue(byte[] data, int offset, int length) {
+		if(pending.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		pending.put(data, offset, length);
+	}
+
+	/**
+	 * Offers a frame to be sent. By default frames are latest-wins: if the previous
+	 * frame hasn't left yet it is replaced by this one, so a slow computer only ever
+	 * gets the newest state rather than a backlog of old ones. The computer can
+	 * choose otherwise with {@link CommandParser#CMD_SLOW_CONSUMER}.
+	 * @throws IOException if the computer has fallen too far behind, and should be dropped
+	 */
+	protected final void offerFrame(byte[] frame, int offset, int length) throws IOException {
+		switch(slowConsumer) {
+		case BinarySerialiser.SLOW_CONSUMER_QUEUE:
+			if(pending.position() > MAX_QUEUED_BYTES)
+				throw new IOException("Computer has fallen too far behind");
+			break;
+		case BinarySerialiser.SLOW_CONSUMER_DISCONNECT:
+			if(getCurrentWriteStall() > MAX_STALL)
+				throw new IOException("Computer has stopped reading frames");
+			break;
+		}
+		if(mailboxFull) supersededFrames++;
+		if(mailbox.length < length) mailbox = new byte[length];
+		System.arraycopy(frame, offset, mailbox, 0, length);
+		mailboxLength = length;
+		mailboxFull = true;
+		if(slowConsumer == BinarySerialiser.SLOW_CONSUMER_QUEUE) {
+			// Straight into the queue, behind anything still going out
+			mailboxFull = false;
+			writeMailbox();
+		}
+		flush();
+	}
+
+	/**
+	 * Offers a frame from the {@link FrameProducer}.
+	 */
+	protected final void offerFrame(FrameProducer.Frame frame) throws IOException {
+		offerFrame(frame.getBuffer(), 0, frame.getLength());
+	}
+
+	/**
+	 * Returns <code>true</code> if the last frame offered hasn't been started yet,
+	 * and so would be replaced by the next one.
+	 */
+	protected final boolean hasWaitingFrame() {
+		return mailboxFull;
+	}
+
+	/**
+	 * Turns a frame into the bytes to put on the socket, using {@link #queue(byte[], int, int)}.
+	 * Called once the frame is definitely going to be sent.
+	 */
+	protected void writeFrame(byte[] frame, int length) throws IOException {
+		queue(frame, 0, length);
+	}
+
+	private void writeMailbox() throws IOException {
+		final int before = pending.position();
+		writeFrame(mailbox, mailboxLength);
+		recordFrame(mailbox, mailboxLength);
+		framesWritten++;
+		frameBytes += mailboxLength;
+		wireBytes += pending.position() - before;
+	}
+
+	/**
+	 * Records a frame which has been sent, if the engine is recording.
+	 */
+	protected final void recordFrame(byte[] frame, int length) {
+		final SessionRecorder recorder = engine.getRecorder();
+		if(recorder != null) recorder.recordFrame(id, frame, length);
+	}
+
+	private void flush() throws IOException {
+		while(true) {
+			if(pending.position() == 0 && mailboxFull) {
+				mailboxFull = false;
+				writeMailbox();
+			}
+			if(pending.position() == 0) break;
+			pending.flip();
+			transport.write(pending);
+			pending.compact();
+			if(pending.position() > 0) break; // Socket is full
+		}
+
+		final boolean stalled = pending.position() > 0;
+		if(stalled && stallStart == 0) {
+			stallStart = System.nanoTime();
+			stalls++;
+		} else if(!stalled && stallStart != 0) {
+			long stall = System.nanoTime() - stallStart;
+			totalStall += stall;
+			if(stall > maxStall) maxStall = stall;
+			stallStart = 0;
+		}
+		transport.setWriteInterest(stalled);
+	}
+
+	/**
+	 * Sends a compact frame, preceded by a layout description if the items have
+	 * changed since this computer was last sent one.
+	 */
+	protected final void sendCompactFrame(FrameProducer frames) throws IOException {
+		final byte[] description = frames.getLayoutDescription();
+		if(description != layoutSent) {
+			// Any waiting frame is for the old layout, but is replaced below
+			sendMessage(description, 0, description.length);
+			layoutSent = description;
+		}
+		offerFrame(frames.getCompact(sendSamples, sendTimestamps));
+	}
+
+	/**
+	 * Sends a delta frame, which is encoded for this computer alone.
+	 */
+	protected final void sendDeltaFrame(FrameProducer frames, DeltaState deltaState) throws IOException {
+		if(deltaEncoder == null) deltaEncoder = new FrameEncoder();
+		deltaEncoder.setInput(frames.getInput());
+		deltaEncoder.setSendSamples(sendSamples);
+		deltaEncoder.setSendTimestamps(sendTimestamps);
+		// A delta on top of a frame that will never be sent would be wrong
+		if(hasWaitingFrame()) deltaState.requestKeyframe();
+		int length = deltaEncoder.encodeDelta(frames.getAnalogue(), deltaState);
+		if(length > 0) offerFrame(deltaEncoder.getBuffer(), 0, length);
+	}
+
+	/**
+	 * Counts the axes and buttons in the current layout into
+	 * {@link #numRawDevs}, {@link #numAxes} and {@link #numButtons}.
+	 */
+	protected final void countItems() {
+		numRawDevs = 1;
+		numAxes = 0;
+		numButtons = 0;
+		for(Item item : info.spec.getLayout()) {
+			if(item instanceof Slider) {
+				Slider s = (Slider)item;
+				switch(s.type) {
+				case X:
+				case Y:
+					numAxes += 1; break;
+				case Both:
+					numAxes += 2; break;
+				}
+			} else if(item instanceof Button)
+				numButtons++;
+		}
+	}
+
+	/**
+	 * Returns the connection info header, as sent in binary mode.
+	 */
+	protected final byte[] createConnectionInfo() throws IOException {
+		countItems();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinarySerialiser.writeConnectionInfo(new DataOutputStream(bytes), info.spec.getMode(), numRawDevs, numAxes, numButtons,
+				getSupportedFeatures(), getFrameInterval(), getDeviceTime());
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Marks this session as ready to receive frames, and tells the engine.
+	 */
+	protected final void setActive() {
+		if(active) return;
+		active = true;
+		engine.onSessionActive(this);
+	}
+
+	final boolean isActive() {
+		return active && !closed;
+	}
+
+	/**
+	 * Marks this session as stopped by the computer. The engine will close it.
+	 */
+	protected final void finish() {
+		finished = true;
+	}
+
+	final boolean isFinished() {
+		return finished;
+	}
+
+	String getPeerAddress() {
+		return transport.getPeerName();
+	}
+
+	/**
+	 * Returns the number of frames which were replaced by a newer one before being sent.
+	 */
+	long getSupersededFrames() {
+		return supersededFrames;
+	}
+
+	long getFramesWritten() {
+		return framesWritten;
+	}
+
+	/**
+	 * Returns the total size of the frames written, before any encryption.
+	 */
+	long getFrameBytes() {
+		return frameBytes;
+	}
+
+	/**
+	 * Returns the total number of bytes put on the socket for frames.
+	 */
+	long getWireBytes() {
+		return wireBytes;
+	}
+
+	/**
+	 * Returns how many times the socket has stopped accepting data.
+	 */
+	int getWriteStalls() {
+		return stalls;
+	}
+
+	/**
+	 * Returns how long the socket has been refusing data for, in nanoseconds,
+	 * or 0 if it isn't.
+	 */
+	long getCurrentWriteStall() {
+		return stallStart == 0 ? 0 : System.nanoTime() - stallStart;
+	}
+
+	long getTotalWriteStall() {
+		return totalStall + getCurrentWriteStall();
+	}
+
+	long getMaxWriteStall() {
+		return Math.max(maxStall, getCurrentWriteStall());
+	}
+
+	void close() {
+		if(closed) return;
+		closed = true;
+		try {
+			transport.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to close socket", e);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Records what the engine reads and sends to a file, so that it can be played
+ * back by {@link SessionReplayer}. The file is "DREC", the format version as an int,
+ * then records, each of which is:
+ * <ul>
+ * <li>The type, as a byte</li>
+ * <li>The time, in microseconds on the same clock as {@link System#nanoTime()}, as a long</li>
+ * <li>For {@link #TYPE_INPUT}: flags ({@link #INPUT_HAS_ACCEL}, {@link #INPUT_HAS_GYRO}) as an int,
+ * the accelerometer's x, y, z then the gyroscope's x, y, z and world rotation as floats,
+ * the number of items as an int followed by {@link InputSnapshot#VALUES_PER_ITEM} ints for each,
+ * then the number of sensor samples as an int followed by each sample's type as an int,
+ * time as a long and x, y, z as floats.</li>
+ * <li>For {@link #TYPE_FRAME}: the number of the session it was sent to, then the length,
+ * as ints, then the frame as it was before any encryption.</li>
+ * </ul>
+ * All values are big-endian.
+ *
+ * Records are written into a buffer on the engine's thread, and full buffers are
+ * written to the file on the recorder's own thread, so that nothing else blocking
+ * (such as a DTLS handshake) holds them up. If that falls behind, records are dropped
+ * rather than making the engine wait.
+ *
+ * Frames are recorded before encryption, so the file should be kept in the app's
+ * private storage.
+ * @author william
+ *
+ */
+public class SessionRecorder implements Closeable, LogTag {
+
+	static final byte[] FILE_HEADER_BYTES = "DREC".getBytes();
+	static final int FORMAT_VERSION = 1;
+
+	static final int TYPE_INPUT = 1;
+	static final int TYPE_FRAME = 2;
+
+	static final int INPUT_HAS_ACCEL = 0x1;
+	static final int INPUT_HAS_GYRO = 0x2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int BUFFER_COUNT = 4;
+
+	private final FileChannel channel;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "DroidPad recorder");
+		}
+	});
+
+	/**
+	 * Empty buffers, ready to be filled by the engine's thread
+	 */
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+	/**
+	 * The buffer being filled, or <code>null</code> if none were free
+	 */
+	private ByteBuffer current;
+
+	private long recorded, dropped;
+	private volatile boolean failed;
+
+	public SessionRecorder(File file) throws IOException {
+		try {
+			channel = new FileOutputStream(file).getChannel();
+		} catch (IOException e) {
+			executor.shutdown();
+			throw e;
+		}
+		for(int i = 0; i < BUFFER_COUNT; i++)
+			free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+		current = free.poll();
+		current.put(FILE_HEADER_BYTES);
+		current.putInt(FORMAT_VERSION);
+		Log.i(TAG, "Recording session to " + file);
+	}
+
+	/**
+	 * Records the input read for one frame.
+	 * @param time From {@link System#nanoTime()}
+	 */
+	public void recordInput(long time, AnalogueData analogue, InputSnapshot input) {
+		final SensorRing.Batch samples = analogue.getSamples();
+		final int sampleCount = samples == null ? 0 : samples.getCount();
+		final int valueCount = input.getCount() * InputSnapshot.VALUES_PER_ITEM;
+		final ByteBuffer buffer = start(TYPE_INPUT, time, 4 + 7 * 4 + 4 + valueCount * 4 + 4 + sampleCount * 24);
+		if(buffer == null) return;
+
+		buffer.putInt((analogue.hasAccelerometer() ? INPUT_HAS_ACCEL : 0) |
+				(analogue.hasGyroscope() ? INPUT_HAS_GYRO : 0));
+		putVec(buffer, analogue.hasAccelerometer() ? analogue.getAccelerometer() : null);
+		putVec(buffer, analogue.hasGyroscope() ? analogue.getGyroscope() : null);
+		buffer.putFloat(analogue.getWorldRotation());
+
+		buffer.putInt(input.getCount());
+		final int[] values = input.getValues();
+		for(int i = 0; i < valueCount; i++)
+			buffer.putInt(values[i]);
+
+		buffer.putInt(sampleCount);
+		for(int i = 0; i < sampleCount; i++) {
+			buffer.putInt(samples.types[i]);
+			buffer.putLong(samples.times[i] / 1000);
+			buffer.putFloat(samples.values[i * 3]);
+			buffer.putFloat(samples.values[i * 3 + 1]);
+			buffer.putFloat(samples.values[i * 3 + 2]);
+		}
+	}
+
+	private static void putVec(ByteBuffer buffer, Vec3 vec) {
+		buffer.putFloat(vec == null ? 0 : vec.x);
+		buffer.putFloat(vec == null ? 0 : vec.y);
+		buffer.putFloat(vec == null ? 0 : vec.z);
+	}
+
+	/**
+	 * Records a frame sent to a computer.
+	 * @param session The number the engine gave the session
+	 */
+	public void recordFrame(int session, byte[] frame, int length) {
+		final ByteBuffer buffer = start(TYPE_FRAME, System.nanoTime(), 8 + length);
+		if(buffer == null) return;
+		buffer.putInt(session);
+		buffer.putInt(length);
+		buffer.put(frame, 0, length);
+	}
+
+	/**
+	 * Makes room for a record and writes its type and time.
+	 * @param size The size of the rest of the record
+	 * @return The buffer to write the rest of the record to, or <code>null</code>
+	 * if it must be dropped
+	 */
+	private ByteBuffer start(int type, long time, int size) {
+		size += 9;
+		if(failed || size > BUFFER_SIZE) {
+			dropped++;
+			return null;
+		}
+		if(current != null && current.remaining() < size) {
+			write(current);
+			current = null;
+		}
+		if(current == null) current = free.poll();
+		if(current == null) {
+			dropped++;
+			return null;
+		}
+		recorded++;
+		current.put((byte)type);
+		current.putLong(time / 1000);
+		return current;
+	}
+
+	/**
+	 * Writes a full buffer to the file in the background, then makes it free again.
+	 */
+	private void write(final ByteBuffer buffer) {
+		buffer.flip();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(buffer.hasRemaining()) channel.write(buffer);
+				} catch (IOException e) {
+					if(!failed) Log.e(TAG, "Failed to write recording", e);
+					failed = true;
+				}
+				buffer.clear();
+				free.add(buffer);
+			}
+		});
+	}
+
+	/**
+	 * Writes anything left and closes the file, in the background. The recorder's
+	 * thread ends once it has done so.
+	 */
+	@Override
+	public void close() {
+		if(current != null) {
+			write(current);
+			current = null;
+		}
+		Log.i(TAG, "Recording finished: " + recorded + " records, " + dropped + " dropped");
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					Log.w(TAG, "Failed to close recording", e);
+				}
+			}
+		});
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,216 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import android.util.Log;
+
+/**
+ * Plays back the input from a {@link SessionRecorder} file in place of the
+ * sensors and screen. The engine asks for one frame per recorded input, at the
+ * recorded times (sped up by the rate), and the sessions encode and send them
+ * as they would live input. When the recording ends it starts again.
+ *
+ * The file is memory mapped, and nothing is allocated per frame. Frame records
+ * are skipped; they are only there to compare against.
+ * @author william
+ *
+ */
+public class SessionReplayer implements LogTag {
+
+	private final ByteBuffer data;
+	/**
+	 * The position of each input record's type
+	 */
+	private final int[] inputs;
+	private final float rate;
+
+	private final InputSnapshot input = new InputSnapshot();
+	private int[] values = new int[0];
+	private final Vec3 accelerometer = new Vec3(), gyroscope = new Vec3();
+
+	private int next;
+	/**
+	 * When the first record of this loop was played, from {@link System#nanoTime()}
+	 */
+	private long loopStart;
+	private long firstTime;
+	private int loops;
+
+	/**
+	 * @param rate How much faster than recorded to play, so 1 is the original speed
+	 */
+	public SessionReplayer(File file, float rate) throws IOException {
+		if(rate <= 0) throw new IllegalArgumentException("Replay rate must be positive");
+		this.rate = rate;
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			stream.close();
+		}
+		inputs = index(data);
+		if(inputs.length == 0) throw new IOException("Recording has no input in it");
+		Log.i(TAG, String.format("Replaying %d frames from %s at %.1fx", inputs.length, file, rate));
+	}
+
+	/**
+	 * Finds every input record, checking that the file is complete.
+	 */
+	private static int[] index(ByteBuffer data) throws IOException {
+		byte[] header = new byte[SessionRecorder.FILE_HEADER_BYTES.length];
+		if(data.remaining() < header.length + 4) throw new IOException("Recording too short");
+		data.get(header);
+		if(!Arrays.equals(header, SessionRecorder.FILE_HEADER_BYTES)) throw new IOException("Not a recording");
+		int version = data.getInt();
+		if(version != SessionRecorder.FORMAT_VERSION) throw new IOException("Unknown recording version " + version);
+
+		int[] inputs = new int[256];
+		int count = 0, complete = 0;
+		try {
+			while(data.hasRemaining()) {
+				final int pos = data.position();
+				final int type = data.get();
+				data.getLong(); // Time
+				switch(type) {
+				case SessionRecorder.TYPE_INPUT:
+					if(count == inputs.length) inputs = Arrays.copyOf(inputs, count * 2);
+					inputs[count++] = pos;
+					data.position(data.position() + 4 + 7 * 4);
+					int items = data.getInt();
+					data.position(data.position() + items * InputSnapshot.VALUES_PER_ITEM * 4);
+					int samples = data.getInt();
+					data.position(data.position() + samples * 24);
+					break;
+				case SessionRecorder.TYPE_FRAME:
+					data.getInt(); // Session
+					int length = data.getInt();
+					data.position(data.position() + length);
+					break;
+				default:
+					throw new IOException("Unknown record type " + type + " at " + pos);
+				}
+				complete = count;
+			}
+		} catch(RuntimeException e) {
+			// Buffer underflow or bad position: the recorder was stopped mid-record
+			Log.w(TAG, "Recording is cut short, ignoring the end", e);
+		}
+		return Arrays.copyOf(inputs, complete);
+	}
+
+	/**
+	 * Returns the number of frames in the recording.
+	 */
+	public int getFrameCount() {
+		return inputs.length;
+	}
+
+	/**
+	 * Starts playing from the first record.
+	 * @param now From {@link System#nanoTime()}
+	 */
+	void start(long now) {
+		next = 0;
+		loopStart = now;
+		firstTime = timeOf(0);
+	}
+
+	/**
+	 * Returns how long until the next record should be played, in nanoseconds.
+	 * @param now From {@link System#nanoTime()}
+	 */
+	long nanosUntilNext(long now) {
+		final long due = loopStart + (long)((timeOf(next) - firstTime) * 1000 / rate);
+		return Math.max(0, due - now);
+	}
+
+	private long timeOf(int record) {
+		return data.getLong(inputs[record] + 1);
+	}
+
+	/**
+	 * Loads the next record into <code>analogue</code> and {@link #getInput()}.
+	 * @param now From {@link System#nanoTime()}, used as the capture time
+	 * @param samples Filled with the record's sensor samples
+	 */
+	void next(long now, AnalogueData analogue, SensorRing.Batch samples) {
+		final ByteBuffer data = this.data;
+		final long recordTime = timeOf(next);
+		data.position(inputs[next] + 9);
+
+		final int flags = data.getInt();
+		accelerometer.set(data.getFloat(), data.getFloat(), data.getFloat());
+		gyroscope.set(data.getFloat(), data.getFloat(), data.getFloat());
+		final float worldRotation = data.getFloat();
+		analogue.set(
+				(flags & SessionRecorder.INPUT_HAS_ACCEL) != 0 ? accelerometer : null,
+				(flags & SessionRecorder.INPUT_HAS_GYRO) != 0 ? gyroscope : null,
+				worldRotation);
+		analogue.setCaptureTime(now);
+
+		final int items = data.getInt();
+		final int valueCount = items * InputSnapshot.VALUES_PER_ITEM;
+		if(values.length < valueCount) values = new int[valueCount];
+		for(int i = 0; i < valueCount; i++)
+			values[i] = data.getInt();
+		input.publish(values, items);
+
+		final int sampleCount = data.getInt();
+		final int kept = Math.min(sampleCount, samples.getCapacity());
+		for(int i = 0; i < kept; i++) {
+			samples.types[i] = data.getInt();
+			// Keep each sample's offset from the frame, at the replay speed
+			samples.times[i] = now + (long)((data.getLong() - recordTime) * 1000 / rate);
+			samples.values[i * 3] = data.getFloat();
+			samples.values[i * 3 + 1] = data.getFloat();
+			samples.values[i * 3 + 2] = data.getFloat();
+		}
+		samples.setCount(kept);
+		analogue.setSamples(samples);
+
+		if(++next == inputs.length) {
+			loops++;
+			Log.i(TAG, "Recording finished, playing again (" + loops + " times so far)");
+			start(now + nanosUntilLoop());
+		}
+	}
+
+	/**
+	 * Leaves one average frame gap between the end of the recording and the start of the next loop.
+	 */
+	private long nanosUntilLoop() {
+		if(inputs.length < 2) return 0;
+		return (long)((timeOf(inputs.length - 1) - firstTime) * 1000 / rate / (inputs.length - 1));
+	}
+
+	/**
+	 * Returns the item state from the last record played.
+	 */
+	InputSnapshot getInput() {
+		return input;
+	}
+}
@@ -0,0 +1,156 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import org.spongycastle.crypto.tls.TlsSession;
+
+/**
+ * Keeps the last TLS session with each paired computer, so that reconnecting
+ * can use an abbreviated handshake instead of a full one.
+ *
+ * Sessions are stored by the computer's UUID. The UUID is only sent during a full
+ * handshake, after the session to resume has been chosen, so sessions are found
+ * by the computer's address and then checked against it.
+ *
+ * This means that only one session can be found per address. If several paired
+ * computers share one (behind NAT, say), or a computer's address is later used by
+ * another, the wrong session may be offered. The computer then refuses to resume
+ * it and a full handshake is done, costing one round trip but nothing else, and
+ * the session from that handshake replaces the stored one for that computer.
+ * Sessions made with a PSK are forgotten when the computer is paired again.
+ * @author william
+ *
+ */
+public class TlsSessionCache {
+
+	/**
+	 * How long a session can be resumed for after its full handshake, in nanoseconds
+	 */
+	public static final long LIFETIME = 10L * 60L * 1000L * 1000L * 1000L;
+
+	private static final class Entry {
+		final InetAddress address;
+		final TlsSession session;
+		final long created;
+
+		Entry(InetAddress address, TlsSession session, long created) {
+			this.address = address;
+			this.session = session;
+			this.created = created;
+		}
+	}
+
+	private final Map<UUID, Entry> sessions = new HashMap<UUID, Entry>();
+
+	private int fullHandshakes, resumedHandshakes;
+	private long fullHandshakeTime, resumedHandshakeTime;
+
+	/**
+	 * Returns the session to offer a computer connecting from <code>address</code>,
+	 * or <code>null</code> if there is none which can still be resumed.
+	 */
+	public synchronized TlsSession find(InetAddress address) {
+		final long now = System.nanoTime();
+		Iterator<Entry> it = sessions.values().iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			if(now - entry.created > LIFETIME || !entry.session.isResumable()) {
+				it.remove();
+				continue;
+			}
+			if(entry.address.equals(address)) return entry.session;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the computer a stored session is with, or <code>null</code> if it
+	 * has since been forgotten. An abbreviated handshake has no identity hint, so
+	 * this is how a resumed session knows who it is talking to.
+	 */
+	public synchronized UUID findComputer(TlsSession session) {
+		for(Map.Entry<UUID, Entry> entry : sessions.entrySet()) {
+			if(entry.getValue().session == session) return entry.getKey();
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the session from a full handshake, replacing any earlier one with the same computer.
+	 */
+	public synchronized void put(UUID computerId, InetAddress address, TlsSession session) {
+		sessions.put(computerId, new Entry(address, session, System.nanoTime()));
+	}
+
+	/**
+	 * Forgets the session with a computer, for example when it is paired again.
+	 */
+	public synchronized void invalidate(UUID computerId) {
+		Entry entry = sessions.remove(computerId);
+		if(entry != null) entry.session.invalidate();
+	}
+
+	/**
+	 * Records how long a handshake took.
+	 * @param time In nanoseconds
+	 * @param resumed <code>true</code> if it was an abbreviated handshake
+	 */
+	public synchronized void addHandshake(long time, boolean resumed) {
+		if(resumed) {
+			resumedHandshakes++;
+			resumedHandshakeTime += time;
+		} else {
+			fullHandshakes++;
+			fullHandshakeTime += time;
+		}
+	}
+
+	public synchronized int getFullHandshakes() {
+		return fullHandshakes;
+	}
+
+	public synchronized int getResumedHandshakes() {
+		return resumedHandshakes;
+	}
+
+	/**
+	 * Returns the average time of a full handshake, in nanoseconds.
+	 */
+	public synchronized long getAverageFullHandshake() {
+		return fullHandshakes == 0 ? 0 : fullHandshakeTime / fullHandshakes;
+	}
+
+	/**
+	 * Returns the average time of an abbreviated handshake, in nanoseconds.
+	 */
+	public synchronized long getAverageResumedHandshake() {
+		return resumedHandshakes == 0 ? 0 : resumedHandshakeTime / resumedHandshakes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d full handshakes (%.1fms average), %d resumed (%.1fms average)",
+				fullHandshakes, (float)getAverageFullHandshake() / 1000f / 1000f,
+				resumedHandshakes, (float)getAverageResumedHandshake() / 1000f / 1000f);
+	}
+}
@@ -1,11 +1,20 @@
 package uk.digitalsquid.droidpad.buttons;
 
+import uk.digitalsquid.droidpad.SensorRing;
 import uk.digitalsquid.droidpad.Vec3;
 
 public class AnalogueData {
-	private final Vec3 accelerometer;
-	private final Vec3 gyroscope;
-	private final float worldRotation;
+	private Vec3 accelerometer;
+	private Vec3 gyroscope;
+	private float worldRotation;
+	/**
+	 * When this data was read, from {@link System#nanoTime()}
+	 */
+	private long captureTime;
+	/**
+	 * Every sensor sample since the last frame, if known
+	 */
+	private SensorRing.Batch samples;
 	
 	private final boolean invertX;
 	private final boolean invertY;
@@ -18,6 +27,34 @@ public class AnalogueData {
 		invertY = invY;
 	}
 	
+	/**
+	 * Replaces the sensor values, so one object can be reused for every frame.
+	 */
+	public void set(Vec3 accelerometer, Vec3 gyroscope, float worldRotation) {
+		this.accelerometer = accelerometer;
+		this.gyroscope = gyroscope;
+		this.worldRotation = worldRotation;
+	}
+	
+	public void setCaptureTime(long captureTime) {
+		this.captureTime = captureTime;
+	}
+	
+	public long getCaptureTime() {
+		return captureTime;
+	}
+	
+	public void setSamples(SensorRing.Batch samples) {
+		this.samples = samples;
+	}
+	
+	/**
+	 * Returns the sensor samples since the last frame, or <code>null</code>.
+	 */
+	public SensorRing.Batch getSamples() {
+		return samples;
+	}
+	
 	@Deprecated
 	public AnalogueData(float[] accelerometer, float[] gyroscope, boolean invX, boolean invY) {
 		this.accelerometer = new Vec3(accelerometer);
@@ -32,7 +32,7 @@ public class Button extends Item {
 	
 	/**
 	 * When set, keeps the current selected state for one cycle.
-	 * This is reset every cycle.
+	 * This is reset by {@link #releaseTap()} once the state has been published.
 	 */
 	protected boolean selectedOverride = false;
 
@@ -63,11 +63,6 @@ public class Button extends Item {
 			c.drawText(text, centre.x, centre.y + (TEXT_SIZE / 2), isSelected() ? pTextS : pText);
 	}
 
-	@Override
-	public String getOutputString() {
-		return selected ? "1" : "0";
-	}
-
 	@Override
 	public void resetStickyLock() {
 		tmpSelected = false;
@@ -102,12 +97,15 @@ public class Button extends Item {
 	 */
 	@Override
 	int getData1() {
-		int result = selected ? 1 : 0;
-		if(selectedOverride) {
-			selectedOverride = false;
-			selected = false;
-		}
-		return result;
+		return selected ? 1 : 0;
+	}
+
+	@Override
+	boolean releaseTap() {
+		if(!selectedOverride) return false;
+		selectedOverride = false;
+		selected = false;
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,208 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.buttons;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Passes the state of a {@link Layout}'s items from the UI thread to the
+ * thread sending frames, without either ever waiting for the other.
+ *
+ * This is a triple buffer: the UI thread fills its own buffer and swaps it
+ * with the shared one in {@link #publish(Layout)}, and the sending thread swaps
+ * its own buffer for the shared one in {@link #read()} if it has been replaced.
+ * Each buffer is only ever touched by one thread at a time, so the sender
+ * always sees every item as it was at the end of one touch event.
+ *
+ * Each item is stored as the four values from {@link Item#copyData(int[], int)}.
+ *
+ * When a button is pressed or released the {@link EdgeListener} is told, so that
+ * a frame can be sent straight away rather than on the next tick.
+ * @author william
+ *
+ */
+public final class InputSnapshot {
+
+	public static final int VALUES_PER_ITEM = 4;
+
+	public static interface EdgeListener {
+		/**
+		 * Called on the UI thread when a button has been pressed or released.
+		 * Must not block.
+		 */
+		void onInputEdge();
+	}
+
+	private static final class Buffer {
+		int[] values = new int[0];
+		/**
+		 * Buttons which are only shown as pressed because of a latched press
+		 */
+		boolean[] latched = new boolean[0];
+		int count;
+		long sequence;
+		boolean fresh;
+	}
+
+	// Owned by the UI thread
+	private Buffer back = new Buffer();
+	private long published;
+	/**
+	 * The last publish in which each momentary button was pressed
+	 */
+	private long[] lastPressed = new long[0];
+	/**
+	 * The pressed state of each button at the last publish, to find edges
+	 */
+	private int[] lastButtons = new int[0];
+
+	private volatile EdgeListener edgeListener;
+
+	private final AtomicReference<Buffer> middle = new AtomicReference<Buffer>(new Buffer());
+
+	// Owned by the sending thread
+	private Buffer front = new Buffer();
+	/**
+	 * The sequence of the last buffer taken by {@link #read()}
+	 */
+	private volatile long consumed;
+
+	/**
+	 * Publishes the current state of the layout's items. Must be called on the
+	 * thread which changes the items, once they are in a consistent state.
+	 *
+	 * Momentary buttons are latched: one pressed since the sender last read a
+	 * snapshot stays pressed until the sender has seen it, so a tap shorter
+	 * than a frame is never lost. Such a press is shown for one frame only.
+	 */
+	public void publish(Layout layout) {
+		final Buffer buffer = back;
+		final int count = layout.size();
+		if(buffer.values.length < count * VALUES_PER_ITEM)
+			buffer.values = new int[count * VALUES_PER_ITEM];
+		if(buffer.latched.length < count)
+			buffer.latched = new boolean[count];
+		if(lastPressed.length != count) {
+			lastPressed = new long[count];
+			lastButtons = new int[count];
+		}
+
+		final long sequence = ++published;
+		final long seen = consumed;
+		final int[] values = buffer.values;
+		final boolean[] latched = buffer.latched;
+		boolean edge = false;
+		int i = 0;
+		for(Item item : layout) {
+			final int base = i * VALUES_PER_ITEM;
+			item.copyData(values, base);
+			final boolean tapped = item.releaseTap();
+			latched[i] = false;
+			if((values[base] & Item.FLAG_BUTTON) != 0) {
+				if(values[base + 1] != lastButtons[i]) edge = true;
+				lastButtons[i] = values[base + 1];
+			}
+			if((values[base] & Item.FLAG_TOGGLE_BUTTON) == Item.FLAG_BUTTON) {
+				if(values[base + 1] != 0) {
+					lastPressed[i] = sequence;
+					// A tapped button is released again straight away, so is only latched
+					latched[i] = tapped;
+				} else if(lastPressed[i] > seen) {
+					values[base + 1] = 1;
+					latched[i] = true;
+				}
+			}
+			i++;
+		}
+		buffer.count = count;
+		buffer.sequence = sequence;
+		buffer.fresh = true;
+		back = middle.getAndSet(buffer);
+
+		final EdgeListener listener = edgeListener;
+		if(edge && listener != null) listener.onInputEdge();
+	}
+
+	/**
+	 * Publishes item values which were read earlier, such as from a recording.
+	 * Unlike {@link #publish(Layout)}, nothing is latched and no edges are reported.
+	 * @param values {@link #VALUES_PER_ITEM} per item, copied before this returns
+	 */
+	public void publish(int[] values, int count) {
+		final Buffer buffer = back;
+		if(buffer.values.length < count * VALUES_PER_ITEM)
+			buffer.values = new int[count * VALUES_PER_ITEM];
+		if(buffer.latched.length < count)
+			buffer.latched = new boolean[count];
+		System.arraycopy(values, 0, buffer.values, 0, count * VALUES_PER_ITEM);
+		for(int i = 0; i < count; i++) buffer.latched[i] = false;
+		buffer.count = count;
+		buffer.sequence = ++published;
+		buffer.fresh = true;
+		back = middle.getAndSet(buffer);
+	}
+
+	public void setEdgeListener(EdgeListener edgeListener) {
+		this.edgeListener = edgeListener;
+	}
+
+	/**
+	 * Takes the latest published state, if there is a new one. Should be called
+	 * once per frame by the sending thread, after which {@link #getValues()} and
+	 * {@link #getCount()} give the state until the next call.
+	 * @return <code>true</code> if the state has changed since the last call.
+	 */
+	public boolean read() {
+		if(!middle.get().fresh) return releaseLatched();
+		front.fresh = false;
+		front = middle.getAndSet(front);
+		consumed = front.sequence;
+		return true;
+	}
+
+	/**
+	 * Releases buttons which were only pressed because of a latch, now that
+	 * they have been sent once.
+	 * @return <code>true</code> if any were released
+	 */
+	private boolean releaseLatched() {
+		final Buffer buffer = front;
+		boolean changed = false;
+		for(int i = 0; i < buffer.count; i++) {
+			if(!buffer.latched[i]) continue;
+			buffer.latched[i] = false;
+			buffer.values[i * VALUES_PER_ITEM + 1] = 0;
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns the number of items in the last state read.
+	 */
+	public int getCount() {
+		return front.count;
+	}
+
+	/**
+	 * Returns the values of the last state read, {@link #VALUES_PER_ITEM} per item.
+	 * Only the first <code>getCount() * VALUES_PER_ITEM</code> are valid.
+	 */
+	public int[] getValues() {
+		return front.values;
+	}
+}
@@ -16,8 +16,6 @@
 
 package uk.digitalsquid.droidpad.buttons;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.io.Serializable;
 
 import android.graphics.Canvas;
@@ -135,22 +133,31 @@ public abstract class Item implements Serializable {
 		return selected;
 	}
 	
-	public abstract String getOutputString();
-	
 	/**
-	 * See binary spec for info on the layout of this
-	 * @param os
-	 * @throws IOException
+	 * Copies the item's flags and three data values, as sent in binary frames,
+	 * into <code>dest</code>, starting at <code>offset</code>.
+	 * @param dest
+	 * @param offset
 	 */
-	public final void writeBinary(DataOutputStream os) throws IOException {
-		os.writeInt(getFlags());
-		os.writeInt(getData1());
-		os.writeInt(getData2());
-		os.writeInt(getData3());
+	public final void copyData(int[] dest, int offset) {
+		dest[offset] = getFlags();
+		dest[offset + 1] = getData1();
+		dest[offset + 2] = getData2();
+		dest[offset + 3] = getData3();
 	}
-	
+
+	/**
+	 * Releases a press made by {@link ButtonPresses#tapDefaultButton()}, which only lasts
+	 * until the item's state has been published. Called by {@link InputSnapshot#publish(Layout)}
+	 * after reading the item's values.
+	 * @return <code>true</code> if the item was tapped, and so has now been released
+	 */
+	boolean releaseTap() {
+		return false;
+	}
+
 	/**
-	 * Used for binary serialisation
+	 * Used for binary serialisation. These have no side effects.
 	 * @return
 	 */
 	abstract int getFlags();
@@ -16,11 +16,12 @@
 
 package uk.digitalsquid.droidpad.buttons;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.LinkedList;
 
 import uk.digitalsquid.droidpad.LogTag;
-import uk.digitalsquid.droidpad.UICallbacks;
 
 public class Layout extends LinkedList<Item> implements ButtonPresses, Serializable, LogTag {
 
@@ -51,7 +52,7 @@ public class Layout extends LinkedList<Item> implements ButtonPresses, Serializa
 
 	private final int height;
 	
-	private transient UICallbacks uiCallbacks;
+	private transient InputSnapshot snapshot = new InputSnapshot();
 
 	public Layout() {
 		this(BUTTONS_X, BUTTONS_Y, new Item[0]);
@@ -144,14 +145,27 @@ public class Layout extends LinkedList<Item> implements ButtonPresses, Serializa
 		return height;
 	}
 
-	private UICallbacks getUiCallbacks() {
-		return uiCallbacks != null ? uiCallbacks : UICallbacks.NULL_UI_CALLBACKS;
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		snapshot = new InputSnapshot();
 	}
-
-	public void setUiCallbacks(UICallbacks uiCallbacks) {
-		this.uiCallbacks = uiCallbacks;
+	
+	/**
+	 * Returns the snapshot used to pass the state of this layout's items to the
+	 * thread sending frames.
+	 */
+	public InputSnapshot getSnapshot() {
+		return snapshot;
 	}
-
+	
+	/**
+	 * Publishes the current state of the items to {@link #getSnapshot()}.
+	 * Must be called from the thread which changes the items.
+	 */
+	public void publishState() {
+		snapshot.publish(this);
+	}
+	
 	@Override
 	public void tapDefaultButton() {
 		for(Item item : this) {
@@ -162,15 +176,6 @@ public class Layout extends LinkedList<Item> implements ButtonPresses, Serializa
 		}
 	}
 	
-	public void resetOverrides() {
-		for(Item item : this) {
-			if(item instanceof Button && !(item instanceof ToggleButton)) {
-				((Button)item).selectedOverride = false;
-			}
-		}
-		getUiCallbacks().refreshScreen();
-	}
-	
 	private boolean activityHorizontal = false;
 	
 	/**
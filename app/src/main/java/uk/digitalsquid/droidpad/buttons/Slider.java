@@ -70,18 +70,6 @@ public class Slider extends Item {
 		c.drawCircle(posOnScreenX, posOnScreenY, SLIDER_SIZE, pText);
 	}
 
-	@Override
-	public String getOutputString() {
-		switch(type) {
-		case X:
-			return "{S" + ax + "}";
-		case Y:
-			return "{S" + ay + "}";
-		case Both:
-		default:
-			return "{A" + ax + "," + ay + "}";
-		}
-	}
 	
 	private boolean axesFloat = false;
 	
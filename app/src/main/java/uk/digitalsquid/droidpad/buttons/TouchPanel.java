@@ -75,18 +75,6 @@ public class TouchPanel extends Item implements LogTag {
 	@Override
 	public void drawInArea(Canvas c, RectF area, PointF centre, boolean landscape) { }
 
-	@Override
-	public String getOutputString() {
-		switch(type) {
-		case X:
-			return "{C" + ax + "}";
-		case Y:
-			return "{C" + ay + "}";
-		case Both:
-		default:
-			return "{T" + ax + "," + ay + "}";
-		}
-	}
 	
 	private boolean newRun = true, tmpNewRun = true;
 
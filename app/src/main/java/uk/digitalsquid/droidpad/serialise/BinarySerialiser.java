@@ -1,12 +1,11 @@
 package uk.digitalsquid.droidpad.serialise;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
 import uk.digitalsquid.droidpad.LogTag;
 import uk.digitalsquid.droidpad.buttons.AnalogueData;
-import uk.digitalsquid.droidpad.buttons.Item;
-import uk.digitalsquid.droidpad.buttons.Layout;
 
 /**
  * Format of this binary structure is available in a separate file
@@ -19,33 +18,128 @@ public class BinarySerialiser implements LogTag {
 	static final int HEADER_FLAG_HAS_ACCEL = 0x1;
 	static final int HEADER_FLAG_HAS_GYRO = 0x2;
 	static final int HEADER_FLAG_STOP = 0x4;
+	/**
+	 * Set on frames which only contain what has changed since the last frame.
+	 * See {@link FrameEncoder#encodeDelta(AnalogueData, DeltaState)}.
+	 */
+	static final int HEADER_FLAG_DELTA = 0x8;
+	/**
+	 * Set on frames where the reserved fields hold the frame's sequence number (reservedX)
+	 * and the device's capture time in microseconds (the high and low words in reservedY and reservedZ),
+	 * stored as the raw bits of the floats.
+	 */
+	static final int HEADER_FLAG_TIMESTAMPED = 0x10;
+	/**
+	 * Set on frames which end with a block of sensor samples: the number of samples as an int,
+	 * then for each the type (see {@link uk.digitalsquid.droidpad.SensorRing}), the time
+	 * relative to the frame's capture time in microseconds as an int, and x, y, z as floats.
+	 */
+	static final int HEADER_FLAG_SAMPLES = 0x20;
+	
+	/**
+	 * The size of the header of each frame, in bytes
+	 */
+	static final int HEADER_SIZE = 52;
+	/**
+	 * The size of each item in a frame, in bytes
+	 */
+	static final int ITEM_SIZE = 16;
+	/**
+	 * The size of each sensor sample in a frame, in bytes
+	 */
+	static final int SAMPLE_SIZE = 20;
+	/**
+	 * The most sensor samples sent in one frame
+	 */
+	public static final int MAX_SAMPLES = 32;
+	
+	/**
+	 * The version of the protocol sent in the connection info. Computers which
+	 * don't read it see the same zeros as before and never negotiate.
+	 */
+	public static final int PROTOCOL_VERSION = 1;
+	
+	/**
+	 * Optional features, as negotiated by {@link uk.digitalsquid.droidpad.CommandParser#CMD_NEGOTIATE}.
+	 */
+	public static final int FEATURE_DELTA = 0x1;
+	/**
+	 * Frames carry a sequence number and capture time ({@link #HEADER_FLAG_TIMESTAMPED}).
+	 * Only sent once negotiated; otherwise the flag is clear and the fields are the
+	 * reserved zeros older computers expect.
+	 */
+	public static final int FEATURE_TIMESTAMPS = 0x2;
+	/**
+	 * The computer understands pings from the device, and pongs which carry the
+	 * device's time ({@link #TIMED_PONG_SIZE} rather than {@link #PONG_SIZE})
+	 */
+	public static final int FEATURE_PING = 0x4;
+	public static final int FEATURE_SAMPLES = 0x8;
+	public static final int FEATURE_COMPACT = 0x10;
+	public static final int FEATURE_DATAGRAM = 0x20;
+	public static final int FEATURE_SECURE_DATAGRAM = 0x40;
+	/**
+	 * The computer understands the connection info being sent again when the mode changes
+	 */
+	public static final int FEATURE_LAYOUT_CHANGE = 0x80;
+	/**
+	 * The computer can choose what happens when it reads frames too slowly,
+	 * with {@link uk.digitalsquid.droidpad.CommandParser#CMD_SLOW_CONSUMER}
+	 */
+	public static final int FEATURE_SLOW_CONSUMER = 0x100;
+
+	/**
+	 * Frames waiting for a slow computer are replaced by newer ones. The default.
+	 */
+	public static final int SLOW_CONSUMER_LATEST = 0;
+	/**
+	 * Every frame is sent, however far behind the computer falls, up to a limit.
+	 * For computers recording the input rather than reacting to it.
+	 */
+	public static final int SLOW_CONSUMER_QUEUE = 1;
+	/**
+	 * The computer is disconnected if it stops reading for too long.
+	 */
+	public static final int SLOW_CONSUMER_DISCONNECT = 2;
 	
 	static final byte[] HEADER_BYTES = "DPAD".getBytes();
 	static final byte[] INFO_HEADER_BYTES = "DINF".getBytes();
 	public static final byte[] CMD_HEADER_BYTES = "DCMD".getBytes();
-
-	public static final void writeBinary(DataOutputStream out, AnalogueData analogue, Layout layout) throws IOException {
-		writeHeader(out, analogue, layout);
-		for(Item item : layout) {
-			item.writeBinary(out);
-		}
-		out.flush();
-	}
+	/**
+	 * Compact frames; see {@link FrameEncoder#encodeCompact(AnalogueData)}
+	 */
+	static final byte[] COMPACT_HEADER_BYTES = "DPCK".getBytes();
+	/**
+	 * Describes the items in compact frames; see {@link FrameEncoder#createLayoutDescription()}
+	 */
+	static final byte[] LAYOUT_HEADER_BYTES = "DLAY".getBytes();
+	static final byte[] PONG_HEADER_BYTES = "DPNG".getBytes();
+	static final byte[] PING_HEADER_BYTES = "DPIN".getBytes();
+	static final byte[] CAPABILITIES_HEADER_BYTES = "DCAP".getBytes();
 	
-	private static final void writeHeader(DataOutputStream out, AnalogueData analogue, Layout layout) throws IOException {
-		final int elems = layout.size();
-		final int flags = (analogue.hasAccelerometer() ? HEADER_FLAG_HAS_ACCEL : 0) |
-					(analogue.hasGyroscope() ? HEADER_FLAG_HAS_GYRO : 0);
-		
-		float accelX = analogue.hasAccelerometer() ? analogue.getAccelerometer().x : 0;
-		float accelY = analogue.hasAccelerometer() ? analogue.getAccelerometer().y : 0;
-		final float accelZ = analogue.hasAccelerometer() ? analogue.getAccelerometer().z : 0;
-		if(analogue.isInvertX()) accelX = -accelX;
-		if(analogue.isInvertY()) accelY = -accelY;
-		final float gyroX = analogue.hasGyroscope() ? analogue.getGyroscope().x : 0;
-		final float gyroY = analogue.hasGyroscope() ? analogue.getGyroscope().y : 0;
-		final float gyroZ = analogue.hasGyroscope() ? analogue.getGyroscope().z : 0;
-		final float gyroAcc = analogue.hasGyroscope() ? analogue.getWorldRotation() : 0;
+	/**
+	 * The size of a pong message: the header then the value from the ping, as a long.
+	 */
+	public static final int PONG_SIZE = 12;
+	/**
+	 * The size of a pong message sent to computers which negotiated {@link #FEATURE_PING}:
+	 * a normal pong followed by the device's time in microseconds, as a long.
+	 */
+	public static final int TIMED_PONG_SIZE = 20;
+	/**
+	 * The size of a ping message: the header then the device's time in microseconds, as a long.
+	 * The computer replies with {@link uk.digitalsquid.droidpad.CommandParser#CMD_PONG}.
+	 */
+	public static final int PING_SIZE = 12;
+	/**
+	 * The size of the reply to a negotiation: the header, then the agreed version,
+	 * features and frame interval in microseconds, as ints.
+	 */
+	public static final int CAPABILITIES_SIZE = 16;
+
+	private static final void writeHeader(DataOutputStream out, int elems, int flags,
+			float accelX, float accelY, float accelZ,
+			float gyroX, float gyroY, float gyroZ, float gyroAcc) throws IOException {
 		final float reservedX = 0;
 		final float reservedY = 0;
 		final float reservedZ = 0;
@@ -101,21 +195,98 @@ public class BinarySerialiser implements LogTag {
 		out.flush();
 	}
 	
-	public static final void writeConnectionInfo(DataOutputStream out, int mode, int rawDevs, int axes, int buttons) throws IOException {
+	/**
+	 * Returns a stop command in the binary format.
+	 */
+	public static final byte[] createStopCommand() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+		try {
+			writeStopCommand(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			// Can't happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Writes a reply to a ping into <code>dest</code>, which must be {@link #PONG_SIZE} long.
+	 * @param dest
+	 * @param value The value sent with the ping
+	 */
+	public static final void writePong(byte[] dest, long value) {
+		System.arraycopy(PONG_HEADER_BYTES, 0, dest, 0, 4);
+		putLong(dest, 4, value);
+	}
+	
+	/**
+	 * Writes a reply to a ping, for computers which negotiated {@link #FEATURE_PING},
+	 * into <code>dest</code>, which must be {@link #TIMED_PONG_SIZE} long.
+	 * @param dest
+	 * @param value The value sent with the ping
+	 * @param deviceTime The device's time in microseconds
+	 */
+	public static final void writeTimedPong(byte[] dest, long value, long deviceTime) {
+		writePong(dest, value);
+		putLong(dest, 12, deviceTime);
+	}
+	
+	/**
+	 * Writes a ping into <code>dest</code>, which must be {@link #PING_SIZE} long.
+	 * @param dest
+	 * @param deviceTime The device's time in microseconds
+	 */
+	public static final void writePing(byte[] dest, long deviceTime) {
+		System.arraycopy(PING_HEADER_BYTES, 0, dest, 0, 4);
+		putLong(dest, 4, deviceTime);
+	}
+	
+	/**
+	 * Writes the reply to a negotiation into <code>dest</code>, which must be {@link #CAPABILITIES_SIZE} long.
+	 * @param dest
+	 * @param version The version both sides understand
+	 * @param features The <code>FEATURE_</code> flags which are now on
+	 * @param interval The frame interval in microseconds
+	 */
+	public static final void writeCapabilities(byte[] dest, int version, int features, int interval) {
+		System.arraycopy(CAPABILITIES_HEADER_BYTES, 0, dest, 0, 4);
+		putInt(dest, 4, version);
+		putInt(dest, 8, features);
+		putInt(dest, 12, interval);
+	}
+	
+	private static final void putInt(byte[] dest, int pos, int value) {
+		for(int i = 0; i < 4; i++) {
+			dest[pos + i] = (byte)(value >>> (24 - i * 8));
+		}
+	}
+	
+	private static final void putLong(byte[] dest, int pos, long value) {
+		for(int i = 0; i < 8; i++) {
+			dest[pos + i] = (byte)(value >>> (56 - i * 8));
+		}
+	}
+	
+	/**
+	 * @param features The <code>FEATURE_</code> flags the device supports
+	 * @param interval The current frame interval in microseconds
+	 * @param deviceTime The device's time in microseconds, on the same clock as frame timestamps
+	 */
+	public static final void writeConnectionInfo(DataOutputStream out, int mode, int rawDevs, int axes, int buttons,
+			int features, int interval, long deviceTime) throws IOException {
 		out.write(INFO_HEADER_BYTES);
 		out.writeInt(mode);
 		out.writeInt(rawDevs);
 		out.writeInt(axes);
 		out.writeInt(buttons);
 		// 32 bytes reserved
+		out.writeInt(PROTOCOL_VERSION);
+		out.writeInt(features);
+		out.writeInt(interval);
 		out.writeInt(0);
 		out.writeInt(0);
 		out.writeInt(0);
-		out.writeInt(0);
-		out.writeInt(0);
-		out.writeInt(0);
-		out.writeInt(0);
-		out.writeInt(0);
+		out.writeLong(deviceTime); // Last 8 bytes
 		out.flush();
 	}
 }
@@ -0,0 +1,185 @@
+package uk.digitalsquid.droidpad.serialise;
+
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+
+/**
+ * Remembers what was last sent to the computer, so that delta frames only need
+ * to carry the items and sensor values which have changed since.
+ * One of these should be kept per connection.
+ * @author william
+ *
+ */
+public class DeltaState {
+
+	/**
+	 * A full frame is sent at least this often so the computer can resync, in nanoseconds.
+	 */
+	public static final long KEYFRAME_INTERVAL = 5000L * 1000L * 1000L;
+	/**
+	 * If nothing has changed for this long an empty delta frame is sent, in nanoseconds.
+	 */
+	public static final long HEARTBEAT_INTERVAL = 500L * 1000L * 1000L;
+
+	public static final float DEFAULT_ACCEL_THRESHOLD = 0.1f;
+	public static final float DEFAULT_GYRO_THRESHOLD = 0.01f;
+
+	static final int AXIS_ACCEL_X = 0;
+	static final int AXIS_ACCEL_Y = 1;
+	static final int AXIS_ACCEL_Z = 2;
+	static final int AXIS_GYRO_X = 3;
+	static final int AXIS_GYRO_Y = 4;
+	static final int AXIS_GYRO_Z = 5;
+	static final int AXIS_WORLD_ROTATION = 6;
+	static final int AXES = 7;
+
+	private final float[] thresholds = new float[AXES];
+
+	/**
+	 * Sensor values as they were last sent
+	 */
+	final float[] sentAxes = new float[AXES];
+	/**
+	 * Sensor values for the frame being built
+	 */
+	final float[] axes = new float[AXES];
+
+	/**
+	 * Item values as they were last sent, 4 per item
+	 */
+	int[] sentItems = new int[0];
+	/**
+	 * Item values for the frame being built, 4 per item
+	 */
+	int[] items = new int[0];
+	int itemCount;
+
+	boolean hasAccel, hasGyro;
+
+	private boolean keyframeRequested = true;
+	private long lastKeyframe;
+	private long lastSent;
+
+	public DeltaState() {
+		setAccelerometerThresholds(DEFAULT_ACCEL_THRESHOLD, DEFAULT_ACCEL_THRESHOLD, DEFAULT_ACCEL_THRESHOLD);
+		setGyroscopeThresholds(DEFAULT_GYRO_THRESHOLD, DEFAULT_GYRO_THRESHOLD, DEFAULT_GYRO_THRESHOLD, DEFAULT_GYRO_THRESHOLD);
+	}
+
+	/**
+	 * Sets the smallest change on each accelerometer axis that counts as a change.
+	 */
+	public void setAccelerometerThresholds(float x, float y, float z) {
+		thresholds[AXIS_ACCEL_X] = x;
+		thresholds[AXIS_ACCEL_Y] = y;
+		thresholds[AXIS_ACCEL_Z] = z;
+	}
+
+	/**
+	 * Sets the smallest change on each gyroscope axis (and the world rotation)
+	 * that counts as a change.
+	 */
+	public void setGyroscopeThresholds(float x, float y, float z, float worldRotation) {
+		thresholds[AXIS_GYRO_X] = x;
+		thresholds[AXIS_GYRO_Y] = y;
+		thresholds[AXIS_GYRO_Z] = z;
+		thresholds[AXIS_WORLD_ROTATION] = worldRotation;
+	}
+
+	/**
+	 * Forces the next frame to be a full keyframe.
+	 */
+	public void requestKeyframe() {
+		keyframeRequested = true;
+	}
+
+	/**
+	 * Copies the current state of the sensors and items into this object.
+	 * @param values The items' values, as given by {@link uk.digitalsquid.droidpad.buttons.InputSnapshot#getValues()}
+	 * @param count The number of items
+	 */
+	void capture(AnalogueData analogue, int[] values, int count) {
+		hasAccel = analogue.hasAccelerometer();
+		hasGyro = analogue.hasGyroscope();
+		float accelX = hasAccel ? analogue.getAccelerometer().x : 0;
+		float accelY = hasAccel ? analogue.getAccelerometer().y : 0;
+		if(analogue.isInvertX()) accelX = -accelX;
+		if(analogue.isInvertY()) accelY = -accelY;
+		axes[AXIS_ACCEL_X] = accelX;
+		axes[AXIS_ACCEL_Y] = accelY;
+		axes[AXIS_ACCEL_Z] = hasAccel ? analogue.getAccelerometer().z : 0;
+		axes[AXIS_GYRO_X] = hasGyro ? analogue.getGyroscope().x : 0;
+		axes[AXIS_GYRO_Y] = hasGyro ? analogue.getGyroscope().y : 0;
+		axes[AXIS_GYRO_Z] = hasGyro ? analogue.getGyroscope().z : 0;
+		axes[AXIS_WORLD_ROTATION] = hasGyro ? analogue.getWorldRotation() : 0;
+
+		itemCount = count;
+		if(this.items.length != count * 4) {
+			// Layout changed under us; start again from a keyframe.
+			this.items = new int[count * 4];
+			sentItems = new int[count * 4];
+			keyframeRequested = true;
+		}
+		System.arraycopy(values, 0, items, 0, count * 4);
+	}
+
+	/**
+	 * Returns <code>true</code> if the captured frame should be sent in full.
+	 */
+	boolean needsKeyframe(long now) {
+		return keyframeRequested || now - lastKeyframe >= KEYFRAME_INTERVAL;
+	}
+
+	/**
+	 * Returns <code>true</code> if a frame must be sent even if nothing has changed.
+	 */
+	boolean needsHeartbeat(long now) {
+		return now - lastSent >= HEARTBEAT_INTERVAL;
+	}
+
+	boolean itemChanged(int index) {
+		final int base = index * 4;
+		return items[base] != sentItems[base] ||
+				items[base + 1] != sentItems[base + 1] ||
+				items[base + 2] != sentItems[base + 2] ||
+				items[base + 3] != sentItems[base + 3];
+	}
+
+	boolean accelChanged() {
+		return axisChanged(AXIS_ACCEL_X) || axisChanged(AXIS_ACCEL_Y) || axisChanged(AXIS_ACCEL_Z);
+	}
+
+	boolean gyroChanged() {
+		return axisChanged(AXIS_GYRO_X) || axisChanged(AXIS_GYRO_Y) ||
+				axisChanged(AXIS_GYRO_Z) || axisChanged(AXIS_WORLD_ROTATION);
+	}
+
+	private boolean axisChanged(int axis) {
+		return Math.abs(axes[axis] - sentAxes[axis]) >= thresholds[axis];
+	}
+
+	/**
+	 * Records that the captured item at <code>index</code> has been sent.
+	 */
+	void markItemSent(int index) {
+		System.arraycopy(items, index * 4, sentItems, index * 4, 4);
+	}
+
+	void markAccelSent() {
+		System.arraycopy(axes, AXIS_ACCEL_X, sentAxes, AXIS_ACCEL_X, 3);
+	}
+
+	void markGyroSent() {
+		System.arraycopy(axes, AXIS_GYRO_X, sentAxes, AXIS_GYRO_X, 4);
+	}
+
+	void markKeyframeSent(long now) {
+		System.arraycopy(items, 0, sentItems, 0, items.length);
+		System.arraycopy(axes, 0, sentAxes, 0, AXES);
+		keyframeRequested = false;
+		lastKeyframe = now;
+		lastSent = now;
+	}
+
+	void markSent(long now) {
+		lastSent = now;
+	}
+}
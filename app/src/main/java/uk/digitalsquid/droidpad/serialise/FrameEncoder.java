@@ -0,0 +1,389 @@
+package uk.digitalsquid.droidpad.serialise;
+
+import uk.digitalsquid.droidpad.SensorRing;
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import uk.digitalsquid.droidpad.buttons.Item;
+
+/**
+ * Builds binary frames into a single reusable buffer, so that a whole frame can be
+ * handed to the socket in one write. A full frame is the header followed by each
+ * item's values from {@link Item#copyData(int[], int)}, as big-endian ints.
+ * The reserved header fields carry a sequence number and timestamp
+ * unless turned off (see {@link BinarySerialiser#HEADER_FLAG_TIMESTAMPED}).
+ * Nothing is allocated per frame unless the layout changes.
+ * One of these should be kept per stream of frames, as it numbers them.
+ * @author william
+ *
+ */
+public class FrameEncoder {
+
+	/**
+	 * Items in delta frames are prefixed by their index.
+	 */
+	static final int DELTA_ITEM_SIZE = BinarySerialiser.ITEM_SIZE + 4;
+
+	private byte[] buffer = new byte[0];
+
+	private InputSnapshot input;
+	private int itemCount;
+
+	/**
+	 * Sequence number of the next frame. Gaps show the computer that frames were lost or replaced.
+	 */
+	private int sequence;
+
+	private boolean sendSamples;
+	private boolean sendTimestamps;
+
+	/**
+	 * The item flags last sent in a layout description, for compact frames
+	 */
+	private int[] layoutFlags = null;
+
+	/**
+	 * Points the encoder at the item state which has just been read, resizing the buffer if needed.
+	 * This is cheap if the number of items hasn't changed, so can be called every frame.
+	 * @param input
+	 */
+	public void setInput(InputSnapshot input) {
+		this.input = input;
+		if(input.getCount() == itemCount && buffer.length != 0) return;
+		itemCount = input.getCount();
+		buffer = new byte[BinarySerialiser.HEADER_SIZE + itemCount * DELTA_ITEM_SIZE +
+				4 + BinarySerialiser.MAX_SAMPLES * BinarySerialiser.SAMPLE_SIZE];
+	}
+
+	/**
+	 * Turns on sending every sensor sample since the last frame, as described in
+	 * {@link BinarySerialiser#HEADER_FLAG_SAMPLES}.
+	 */
+	public void setSendSamples(boolean sendSamples) {
+		this.sendSamples = sendSamples;
+	}
+
+	/**
+	 * Turns the sequence number and capture time in each frame on or off. They are
+	 * off unless a computer negotiates {@link BinarySerialiser#FEATURE_TIMESTAMPS};
+	 * when off their fields are sent as zeros, as they always were before.
+	 */
+	public void setSendTimestamps(boolean sendTimestamps) {
+		this.sendTimestamps = sendTimestamps;
+	}
+
+	/**
+	 * Returns the buffer which frames are encoded in to. The contents are only
+	 * valid up to the length returned by the last call to encode.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Encodes a full frame.
+	 * @param analogue
+	 * @return The length of the frame in the buffer
+	 */
+	public int encode(AnalogueData analogue) {
+		final int flags = (sendTimestamps ? BinarySerialiser.HEADER_FLAG_TIMESTAMPED : 0) |
+					(sendSamples ? BinarySerialiser.HEADER_FLAG_SAMPLES : 0) |
+					(analogue.hasAccelerometer() ? BinarySerialiser.HEADER_FLAG_HAS_ACCEL : 0) |
+					(analogue.hasGyroscope() ? BinarySerialiser.HEADER_FLAG_HAS_GYRO : 0);
+
+		float accelX = analogue.hasAccelerometer() ? analogue.getAccelerometer().x : 0;
+		float accelY = analogue.hasAccelerometer() ? analogue.getAccelerometer().y : 0;
+		final float accelZ = analogue.hasAccelerometer() ? analogue.getAccelerometer().z : 0;
+		if(analogue.isInvertX()) accelX = -accelX;
+		if(analogue.isInvertY()) accelY = -accelY;
+		final float gyroX = analogue.hasGyroscope() ? analogue.getGyroscope().x : 0;
+		final float gyroY = analogue.hasGyroscope() ? analogue.getGyroscope().y : 0;
+		final float gyroZ = analogue.hasGyroscope() ? analogue.getGyroscope().z : 0;
+		final float gyroAcc = analogue.hasGyroscope() ? analogue.getWorldRotation() : 0;
+
+		int pos = putHeader(itemCount, flags, accelX, accelY, accelZ, gyroX, gyroY, gyroZ, gyroAcc,
+				analogue.getCaptureTime());
+		final int[] values = input.getValues();
+		final int valueCount = itemCount * InputSnapshot.VALUES_PER_ITEM;
+		for(int i = 0; i < valueCount; i++) {
+			pos = putInt(pos, values[i]);
+		}
+		if(sendSamples) pos = putSamples(pos, analogue);
+		return pos;
+	}
+
+	/**
+	 * Encodes a frame in delta mode. A full frame (keyframe) is sent first and then
+	 * periodically; in between, frames have {@link BinarySerialiser#HEADER_FLAG_DELTA} set
+	 * and only contain the items which changed, each prefixed by its index in the layout.
+	 * The accelerometer and gyroscope fields are only valid if their header flag is set.
+	 * If nothing has changed nothing is encoded, apart from an empty delta frame every
+	 * {@link DeltaState#HEARTBEAT_INTERVAL}.
+	 * @param analogue
+	 * @param state The state of this connection
+	 * @return The length of the frame in the buffer, or 0 if nothing should be sent
+	 */
+	public int encodeDelta(AnalogueData analogue, DeltaState state) {
+		final long now = System.nanoTime();
+		state.capture(analogue, input.getValues(), itemCount);
+		final float[] axes = state.axes;
+		final int[] values = state.items;
+
+		if(state.needsKeyframe(now)) {
+			final int flags = (sendTimestamps ? BinarySerialiser.HEADER_FLAG_TIMESTAMPED : 0) |
+						(sendSamples ? BinarySerialiser.HEADER_FLAG_SAMPLES : 0) |
+						(state.hasAccel ? BinarySerialiser.HEADER_FLAG_HAS_ACCEL : 0) |
+						(state.hasGyro ? BinarySerialiser.HEADER_FLAG_HAS_GYRO : 0);
+			int pos = putHeader(itemCount, flags,
+					axes[DeltaState.AXIS_ACCEL_X], axes[DeltaState.AXIS_ACCEL_Y], axes[DeltaState.AXIS_ACCEL_Z],
+					axes[DeltaState.AXIS_GYRO_X], axes[DeltaState.AXIS_GYRO_Y], axes[DeltaState.AXIS_GYRO_Z],
+					axes[DeltaState.AXIS_WORLD_ROTATION],
+					analogue.getCaptureTime());
+			for(int i = 0; i < values.length; i++) {
+				pos = putInt(pos, values[i]);
+			}
+			if(sendSamples) pos = putSamples(pos, analogue);
+			state.markKeyframeSent(now);
+			return pos;
+		}
+
+		final boolean sendAccel = state.hasAccel && state.accelChanged();
+		final boolean sendGyro = state.hasGyro && state.gyroChanged();
+		int changed = 0;
+		int pos = BinarySerialiser.HEADER_SIZE;
+		for(int i = 0; i < itemCount; i++) {
+			if(!state.itemChanged(i)) continue;
+			final int base = i * 4;
+			pos = putInt(pos, i);
+			pos = putInt(pos, values[base]);
+			pos = putInt(pos, values[base + 1]);
+			pos = putInt(pos, values[base + 2]);
+			pos = putInt(pos, values[base + 3]);
+			state.markItemSent(i);
+			changed++;
+		}
+		final boolean hasSamples = sendSamples && analogue.getSamples() != null &&
+				analogue.getSamples().getCount() > 0;
+		if(changed == 0 && !sendAccel && !sendGyro && !hasSamples && !state.needsHeartbeat(now))
+			return 0;
+		if(sendSamples) pos = putSamples(pos, analogue);
+
+		final int flags = BinarySerialiser.HEADER_FLAG_DELTA |
+					(sendTimestamps ? BinarySerialiser.HEADER_FLAG_TIMESTAMPED : 0) |
+					(sendSamples ? BinarySerialiser.HEADER_FLAG_SAMPLES : 0) |
+					(sendAccel ? BinarySerialiser.HEADER_FLAG_HAS_ACCEL : 0) |
+					(sendGyro ? BinarySerialiser.HEADER_FLAG_HAS_GYRO : 0);
+		putHeader(changed, flags,
+				sendAccel ? axes[DeltaState.AXIS_ACCEL_X] : 0,
+				sendAccel ? axes[DeltaState.AXIS_ACCEL_Y] : 0,
+				sendAccel ? axes[DeltaState.AXIS_ACCEL_Z] : 0,
+				sendGyro ? axes[DeltaState.AXIS_GYRO_X] : 0,
+				sendGyro ? axes[DeltaState.AXIS_GYRO_Y] : 0,
+				sendGyro ? axes[DeltaState.AXIS_GYRO_Z] : 0,
+				sendGyro ? axes[DeltaState.AXIS_WORLD_ROTATION] : 0,
+				analogue.getCaptureTime());
+		if(sendAccel) state.markAccelSent();
+		if(sendGyro) state.markGyroSent();
+		state.markSent(now);
+		return pos;
+	}
+
+	/**
+	 * Returns <code>true</code> if the items are different to those in the last
+	 * layout description, so a new one must be sent before the next compact frame.
+	 */
+	public boolean layoutChanged() {
+		if(layoutFlags == null || layoutFlags.length != itemCount) return true;
+		final int[] values = input.getValues();
+		for(int i = 0; i < itemCount; i++) {
+			if(layoutFlags[i] != values[i * InputSnapshot.VALUES_PER_ITEM]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the layout description sent before compact frames, and whenever
+	 * the layout changes: "DLAY", the number of items as an int, then each item's flags as an int.
+	 * The flags say how each item appears in compact frames, so they aren't sent per frame.
+	 */
+	public byte[] createLayoutDescription() {
+		final int[] values = input.getValues();
+		layoutFlags = new int[itemCount];
+		byte[] description = new byte[8 + itemCount * 4];
+		System.arraycopy(BinarySerialiser.LAYOUT_HEADER_BYTES, 0, description, 0, 4);
+		putInt(description, 4, itemCount);
+		for(int i = 0; i < itemCount; i++) {
+			layoutFlags[i] = values[i * InputSnapshot.VALUES_PER_ITEM];
+			putInt(description, 8 + i * 4, layoutFlags[i]);
+		}
+		return description;
+	}
+
+	/**
+	 * Encodes a compact frame, which describes the items in the last layout description:
+	 * <ul>
+	 * <li>"DPCK"</li>
+	 * <li>Flags, as a short. The same values as the normal header.</li>
+	 * <li>The sequence number, as an unsigned short, or 0 if {@link BinarySerialiser#HEADER_FLAG_TIMESTAMPED} isn't set</li>
+	 * <li>The low 32 bits of the capture time in microseconds, or 0 likewise</li>
+	 * <li>The accelerometer's x, y, z as floats, if {@link BinarySerialiser#HEADER_FLAG_HAS_ACCEL}</li>
+	 * <li>The gyroscope's x, y, z and world rotation as floats, if {@link BinarySerialiser#HEADER_FLAG_HAS_GYRO}</li>
+	 * <li>Every button's state as one bit, in layout order, lowest bit first, padded to a whole byte</li>
+	 * <li>Every axis as a short, in layout order (x then y for items with both).
+	 * Sliders are fixed point, where {@link uk.digitalsquid.droidpad.buttons.Slider#SLIDER_TOT} is 1.
+	 * Trackpad positions are unbounded, so only their low 16 bits are sent and they wrap.</li>
+	 * <li>The sample block, if {@link BinarySerialiser#HEADER_FLAG_SAMPLES}</li>
+	 * </ul>
+	 * All compact frames are full frames.
+	 * @param analogue
+	 * @return The length of the frame in the buffer
+	 */
+	public int encodeCompact(AnalogueData analogue) {
+		final boolean hasAccel = analogue.hasAccelerometer();
+		final boolean hasGyro = analogue.hasGyroscope();
+		final int flags = (sendTimestamps ? BinarySerialiser.HEADER_FLAG_TIMESTAMPED : 0) |
+					(sendSamples ? BinarySerialiser.HEADER_FLAG_SAMPLES : 0) |
+					(hasAccel ? BinarySerialiser.HEADER_FLAG_HAS_ACCEL : 0) |
+					(hasGyro ? BinarySerialiser.HEADER_FLAG_HAS_GYRO : 0);
+		final byte[] buf = buffer;
+
+		System.arraycopy(BinarySerialiser.COMPACT_HEADER_BYTES, 0, buf, 0, 4);
+		int pos = 4;
+		pos = putShort(pos, flags);
+		pos = putShort(pos, sendTimestamps ? sequence++ : 0);
+		pos = putInt(pos, sendTimestamps ? (int)(analogue.getCaptureTime() / 1000) : 0);
+		if(hasAccel) {
+			float accelX = analogue.getAccelerometer().x;
+			float accelY = analogue.getAccelerometer().y;
+			if(analogue.isInvertX()) accelX = -accelX;
+			if(analogue.isInvertY()) accelY = -accelY;
+			pos = putFloat(pos, accelX);
+			pos = putFloat(pos, accelY);
+			pos = putFloat(pos, analogue.getAccelerometer().z);
+		}
+		if(hasGyro) {
+			pos = putFloat(pos, analogue.getGyroscope().x);
+			pos = putFloat(pos, analogue.getGyroscope().y);
+			pos = putFloat(pos, analogue.getGyroscope().z);
+			pos = putFloat(pos, analogue.getWorldRotation());
+		}
+
+		final int[] values = input.getValues();
+		// Buttons
+		int bits = 0, bitCount = 0;
+		for(int i = 0; i < itemCount; i++) {
+			final int base = i * InputSnapshot.VALUES_PER_ITEM;
+			if((values[base] & Item.FLAG_BUTTON) == 0) continue;
+			if(values[base + 1] != 0) bits |= 1 << bitCount;
+			if(++bitCount == 8) {
+				buf[pos++] = (byte)bits;
+				bits = 0;
+				bitCount = 0;
+			}
+		}
+		if(bitCount != 0) buf[pos++] = (byte)bits;
+		// Axes
+		for(int i = 0; i < itemCount; i++) {
+			final int base = i * InputSnapshot.VALUES_PER_ITEM;
+			final int itemFlags = values[base];
+			if((itemFlags & Item.FLAG_BUTTON) != 0) continue;
+			if((itemFlags & Item.FLAG_HAS_X_AXIS) != 0) pos = putAxis(pos, itemFlags, values[base + 1]);
+			if((itemFlags & Item.FLAG_HAS_Y_AXIS) != 0) pos = putAxis(pos, itemFlags, values[base + 2]);
+		}
+
+		if(sendSamples) pos = putSamples(pos, analogue);
+		return pos;
+	}
+
+	private int putAxis(int pos, int itemFlags, int value) {
+		if((itemFlags & Item.FLAG_SLIDER) != 0)
+			value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+		return putShort(pos, value);
+	}
+
+	/**
+	 * Writes the block of sensor samples described in {@link BinarySerialiser#HEADER_FLAG_SAMPLES}.
+	 * @return The position after the block
+	 */
+	private int putSamples(int pos, AnalogueData analogue) {
+		final SensorRing.Batch samples = analogue.getSamples();
+		final int count = samples == null ? 0 : Math.min(samples.getCount(), BinarySerialiser.MAX_SAMPLES);
+		pos = putInt(pos, count);
+		final long captureTime = analogue.getCaptureTime();
+		for(int i = 0; i < count; i++) {
+			final int type = samples.types[i];
+			float x = samples.values[i * 3];
+			float y = samples.values[i * 3 + 1];
+			if(type == SensorRing.TYPE_ACCELEROMETER) {
+				// Same as the accelerometer in the header
+				if(analogue.isInvertX()) x = -x;
+				if(analogue.isInvertY()) y = -y;
+			}
+			pos = putInt(pos, type);
+			pos = putInt(pos, (int)((samples.times[i] - captureTime) / 1000));
+			pos = putFloat(pos, x);
+			pos = putFloat(pos, y);
+			pos = putFloat(pos, samples.values[i * 3 + 2]);
+		}
+		return pos;
+	}
+
+	/**
+	 * Writes the frame header at the start of the buffer, giving it the next sequence number
+	 * if timestamps are on.
+	 * @param captureTime From {@link System#nanoTime()}
+	 * @return The position after the header
+	 */
+	private int putHeader(int elems, int flags,
+			float accelX, float accelY, float accelZ,
+			float gyroX, float gyroY, float gyroZ, float gyroAcc,
+			long captureTime) {
+		final long micros = captureTime / 1000;
+
+		System.arraycopy(BinarySerialiser.HEADER_BYTES, 0, buffer, 0, 4);
+		int pos = 4;
+		pos = putInt(pos, elems);
+		pos = putInt(pos, flags);
+		pos = putFloat(pos, accelX);
+		pos = putFloat(pos, accelY);
+		pos = putFloat(pos, accelZ);
+		pos = putFloat(pos, gyroX);
+		pos = putFloat(pos, gyroY);
+		pos = putFloat(pos, gyroZ);
+		pos = putFloat(pos, gyroAcc);
+		if(sendTimestamps) {
+			pos = putInt(pos, sequence++);
+			pos = putInt(pos, (int)(micros >>> 32));
+			pos = putInt(pos, (int)micros);
+		} else {
+			pos = putInt(pos, 0);
+			pos = putInt(pos, 0);
+			pos = putInt(pos, 0);
+		}
+		return pos;
+	}
+
+	/**
+	 * Big-endian, as {@link java.io.DataOutputStream#writeInt(int)}
+	 */
+	private int putInt(int pos, int v) {
+		return putInt(buffer, pos, v);
+	}
+
+	private static int putInt(byte[] buf, int pos, int v) {
+		buf[pos] = (byte)(v >>> 24);
+		buf[pos + 1] = (byte)(v >>> 16);
+		buf[pos + 2] = (byte)(v >>> 8);
+		buf[pos + 3] = (byte)v;
+		return pos + 4;
+	}
+
+	private int putShort(int pos, int v) {
+		buffer[pos] = (byte)(v >>> 8);
+		buffer[pos + 1] = (byte)v;
+		return pos + 2;
+	}
+
+	private int putFloat(int pos, float v) {
+		return putInt(pos, Float.floatToIntBits(v));
+	}
+}
@@ -0,0 +1,139 @@
+package uk.digitalsquid.droidpad.serialise;
+
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import uk.digitalsquid.droidpad.buttons.Item;
+
+/**
+ * Builds lines of the old text protocol into a single reusable buffer, without
+ * creating any Strings per frame. Items are written from their values in an
+ * {@link InputSnapshot}, using their flags to pick the text: <code>1</code> or <code>0</code>
+ * for buttons, <code>{S...}</code> and <code>{C...}</code> for one axis of a slider or
+ * touch panel, and <code>{A...,...}</code> and <code>{T...,...}</code> for both.
+ * Floats are written as String concatenation would write them, so lines are byte for
+ * byte the same as those of older versions.
+ * The buffer is reused, so one of these can be shared by every connection.
+ * @author william
+ *
+ */
+public class TextEncoder {
+
+	private byte[] buffer = new byte[256];
+	private int length;
+
+	/**
+	 * Floats are formatted by {@link StringBuilder#append(float)}, which gives the same
+	 * digits as String concatenation without allocating, then copied out as ASCII.
+	 */
+	private final StringBuilder floatScratch = new StringBuilder(32);
+	/**
+	 * Digits of an int, written backwards
+	 */
+	private final byte[] intScratch = new byte[11];
+
+	/**
+	 * Encodes one line of the text protocol.
+	 * @param analogue
+	 * @param input The item state which has just been read. May be <code>null</code>
+	 * @return The length of the line in the buffer
+	 */
+	public int encode(AnalogueData analogue, InputSnapshot input) {
+		length = 0;
+		append('[').append('{');
+		append(analogue.isInvertX() ? -analogue.getAccelerometer().x : analogue.getAccelerometer().x).append(',');
+		append(analogue.isInvertY() ? -analogue.getAccelerometer().y : analogue.getAccelerometer().y).append(',');
+		append(analogue.getAccelerometer().z).append('}');
+		if(input != null) {
+			final int[] values = input.getValues();
+			final int count = input.getCount();
+			for(int i = 0; i < count; i++) {
+				append(';');
+				appendItem(values, i * InputSnapshot.VALUES_PER_ITEM);
+			}
+		}
+		append(']').append('\n'); // [] for easy string view
+		return length;
+	}
+
+	/**
+	 * Returns the buffer which lines are encoded in to. The contents are only
+	 * valid up to the length returned by the last call to {@link #encode(AnalogueData, InputSnapshot)}.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Writes one item, chosen by its flags.
+	 */
+	private void appendItem(int[] values, int base) {
+		final int flags = values[base];
+		final int data1 = values[base + 1];
+		final int data2 = values[base + 2];
+		if((flags & Item.FLAG_BUTTON) != 0) {
+			append(data1 != 0 ? '1' : '0');
+			return;
+		}
+		final boolean slider = (flags & Item.FLAG_SLIDER) != 0;
+		final boolean hasX = (flags & Item.FLAG_HAS_X_AXIS) != 0;
+		final boolean hasY = (flags & Item.FLAG_HAS_Y_AXIS) != 0;
+		append('{');
+		if(hasX && !hasY)
+			append(slider ? 'S' : 'C').append(data1);
+		else if(hasY && !hasX)
+			append(slider ? 'S' : 'C').append(data2);
+		else
+			append(slider ? 'A' : 'T').append(data1).append(',').append(data2);
+		append('}');
+	}
+
+	public TextEncoder append(char c) {
+		ensureSpace(1);
+		buffer[length++] = (byte)c;
+		return this;
+	}
+
+	public TextEncoder append(int v) {
+		if(v == Integer.MIN_VALUE) {
+			// Can't be negated
+			floatScratch.setLength(0);
+			floatScratch.append(v);
+			return appendScratch();
+		}
+		final boolean negative = v < 0;
+		if(negative) v = -v;
+		int digits = 0;
+		do {
+			intScratch[digits++] = (byte)('0' + v % 10);
+			v /= 10;
+		} while(v != 0);
+		ensureSpace(digits + 1);
+		if(negative) buffer[length++] = '-';
+		while(digits > 0) {
+			buffer[length++] = intScratch[--digits];
+		}
+		return this;
+	}
+
+	public TextEncoder append(float v) {
+		floatScratch.setLength(0);
+		floatScratch.append(v);
+		return appendScratch();
+	}
+
+	private TextEncoder appendScratch() {
+		final int count = floatScratch.length();
+		ensureSpace(count);
+		for(int i = 0; i < count; i++) {
+			buffer[length++] = (byte)floatScratch.charAt(i);
+		}
+		return this;
+	}
+
+	private void ensureSpace(int needed) {
+		if(length + needed <= buffer.length) return;
+		byte[] larger = new byte[Math.max(buffer.length * 2, length + needed)];
+		System.arraycopy(buffer, 0, larger, 0, length);
+		buffer = larger;
+	}
+}
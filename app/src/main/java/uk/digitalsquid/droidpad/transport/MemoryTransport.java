@@ -0,0 +1,102 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * One end of an in-memory connection, made of two {@link Pipe}s. Pipes are
+ * selectable, so the engine drives these exactly as it does sockets; this lets
+ * sessions run on a plain JVM, such as in tests and benchmarks.
+ * @author william
+ *
+ */
+public final class MemoryTransport implements Transport {
+
+	private final Pipe.SourceChannel source;
+	private final Pipe.SinkChannel sink;
+	private final String name;
+	private SelectionKey writeKey;
+
+	private MemoryTransport(Pipe.SourceChannel source, Pipe.SinkChannel sink, String name) throws IOException {
+		this.source = source;
+		this.sink = sink;
+		this.name = name;
+		source.configureBlocking(false);
+		sink.configureBlocking(false);
+	}
+
+	/**
+	 * Creates both ends of a new connection. What is written to one can be read from the other.
+	 */
+	public static MemoryTransport[] createPair(String name) throws IOException {
+		Pipe there = Pipe.open(), back = Pipe.open();
+		return new MemoryTransport[] {
+				new MemoryTransport(back.source(), there.sink(), name),
+				new MemoryTransport(there.source(), back.sink(), name),
+		};
+	}
+
+	@Override
+	public void register(Selector selector, Object attachment) throws IOException {
+		source.register(selector, SelectionKey.OP_READ, attachment);
+		writeKey = sink.register(selector, 0, attachment);
+	}
+
+	@Override
+	public void setWriteInterest(boolean interested) {
+		if(writeKey != null && writeKey.isValid())
+			writeKey.interestOps(interested ? SelectionKey.OP_WRITE : 0);
+	}
+
+	@Override
+	public int read(ByteBuffer dest) throws IOException {
+		return source.read(dest);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return sink.write(src);
+	}
+
+	@Override
+	public InetAddress getPeerAddress() {
+		return null;
+	}
+
+	@Override
+	public String getPeerName() {
+		return name;
+	}
+
+	/**
+	 * Closes this end. The other end then reads the end of the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			sink.close();
+		} finally {
+			source.close();
+		}
+	}
+}
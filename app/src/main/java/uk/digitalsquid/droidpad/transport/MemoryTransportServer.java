@@ -0,0 +1,81 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Accepts {@link MemoryTransport}s made by {@link #connect(String)}, which can be
+ * called from any thread. Each connection rings a pipe, so that the selector wakes.
+ * @author william
+ *
+ */
+public final class MemoryTransportServer implements TransportServer {
+
+	private final Pipe doorbell;
+	private final Queue<MemoryTransport> waiting = new ConcurrentLinkedQueue<MemoryTransport>();
+	private final ByteBuffer ring = ByteBuffer.allocate(1);
+
+	public MemoryTransportServer() throws IOException {
+		doorbell = Pipe.open();
+		doorbell.source().configureBlocking(false);
+	}
+
+	/**
+	 * Connects a new computer to this server.
+	 * @param name Describes the computer, as {@link Transport#getPeerName()}
+	 * @return The computer's end of the connection
+	 */
+	public MemoryTransport connect(String name) throws IOException {
+		MemoryTransport[] pair = MemoryTransport.createPair(name);
+		waiting.add(pair[1]);
+		synchronized(doorbell) {
+			doorbell.sink().write(ByteBuffer.wrap(new byte[1]));
+		}
+		return pair[0];
+	}
+
+	@Override
+	public void register(Selector selector, Object attachment) throws IOException {
+		doorbell.source().register(selector, SelectionKey.OP_READ, attachment);
+	}
+
+	@Override
+	public Transport accept() throws IOException {
+		ring.clear();
+		doorbell.source().read(ring);
+		return waiting.poll();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			doorbell.sink().close();
+		} finally {
+			doorbell.source().close();
+		}
+		MemoryTransport transport;
+		while((transport = waiting.poll()) != null)
+			transport.close();
+	}
+}
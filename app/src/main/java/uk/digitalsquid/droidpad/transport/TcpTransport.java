@@ -0,0 +1,97 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import uk.digitalsquid.droidpad.LogTag;
+import android.util.Log;
+
+/**
+ * A TCP connection to a computer.
+ * @author william
+ *
+ */
+public class TcpTransport implements Transport, LogTag {
+
+	/**
+	 * The socket send buffer is kept small so that a computer which stops reading
+	 * can't leave seconds of old frames queued up in the kernel.
+	 */
+	public static final int SEND_BUFFER_SIZE = 4096;
+
+	private final SocketChannel channel;
+	private SelectionKey key;
+
+	public TcpTransport(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		try {
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
+			channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+		} catch (SocketException e) {
+			Log.w(TAG, "Failed to set socket options", e);
+		}
+		channel.configureBlocking(false);
+	}
+
+	@Override
+	public void register(Selector selector, Object attachment) throws IOException {
+		key = channel.register(selector, SelectionKey.OP_READ, attachment);
+	}
+
+	@Override
+	public void setWriteInterest(boolean interested) {
+		if(key != null && key.isValid()) {
+			key.interestOps(interested ?
+					SelectionKey.OP_READ | SelectionKey.OP_WRITE :
+					SelectionKey.OP_READ);
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dest) throws IOException {
+		return channel.read(dest);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return channel.write(src);
+	}
+
+	@Override
+	public InetAddress getPeerAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	@Override
+	public String getPeerName() {
+		return getPeerAddress().getHostAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(key != null) key.cancel();
+		channel.close();
+	}
+}
@@ -0,0 +1,77 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts TCP connections on a port. Binding to localhost only is enough for
+ * computers connected by USB, which reach the phone through adb port forwarding.
+ * @author william
+ *
+ */
+public class TcpTransportServer implements TransportServer {
+
+	private final ServerSocketChannel channel;
+
+	/**
+	 * @param onlyLocal If <code>true</code>, only connections from this device (including
+	 * forwarded ones) are accepted
+	 */
+	public TcpTransportServer(int port, boolean onlyLocal) throws IOException {
+		channel = ServerSocketChannel.open();
+		try {
+			channel.socket().setReuseAddress(true);
+			if(onlyLocal)
+				channel.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"), port), 50);
+			else
+				channel.socket().bind(new InetSocketAddress(port), 50);
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void register(Selector selector, Object attachment) throws IOException {
+		channel.register(selector, SelectionKey.OP_ACCEPT, attachment);
+	}
+
+	@Override
+	public Transport accept() throws IOException {
+		SocketChannel socket = channel.accept();
+		if(socket == null) return null;
+		try {
+			return new TcpTransport(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
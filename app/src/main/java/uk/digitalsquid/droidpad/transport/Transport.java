@@ -0,0 +1,69 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+
+/**
+ * A non-blocking byte stream to one computer, which sessions read and write
+ * without knowing what carries it. Transports are driven by a {@link Selector}:
+ * once registered, the selector reports the transport as readable when data has
+ * arrived, and as writable when it was full and can take more.
+ * @author william
+ *
+ */
+public interface Transport extends Closeable {
+
+	/**
+	 * Registers this transport with a selector, for reading. Every key created
+	 * is given <code>attachment</code>.
+	 */
+	void register(Selector selector, Object attachment) throws IOException;
+
+	/**
+	 * Sets whether the selector should report this transport when it is writable.
+	 * This should only be on while there is data which couldn't be written.
+	 */
+	void setWriteInterest(boolean interested);
+
+	/**
+	 * Reads as much as is available, without blocking.
+	 * @return The number of bytes read, or -1 if the computer has closed the connection
+	 */
+	int read(ByteBuffer dest) throws IOException;
+
+	/**
+	 * Writes as much as possible, without blocking.
+	 * @return The number of bytes written, which may be 0
+	 */
+	int write(ByteBuffer src) throws IOException;
+
+	/**
+	 * Returns the computer's IP address, or <code>null</code> if this transport
+	 * doesn't go over IP, in which case datagrams can't be sent to it either.
+	 */
+	InetAddress getPeerAddress();
+
+	/**
+	 * Returns a description of the computer, for the UI and the log.
+	 */
+	String getPeerName();
+}
@@ -0,0 +1,42 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+ * Accepts {@link Transport}s from computers. Like transports, servers are
+ * driven by a {@link Selector}.
+ * @author william
+ *
+ */
+public interface TransportServer extends Closeable {
+
+	/**
+	 * Registers this server with a selector, which then reports it as ready
+	 * when a computer may be waiting. The key is given <code>attachment</code>.
+	 */
+	void register(Selector selector, Object attachment) throws IOException;
+
+	/**
+	 * Accepts a computer, without blocking.
+	 * @return The new transport, already non-blocking, or <code>null</code> if none was waiting
+	 */
+	Transport accept() throws IOException;
+}
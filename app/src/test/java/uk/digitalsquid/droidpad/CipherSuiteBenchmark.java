@@ -0,0 +1,192 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.spongycastle.crypto.tls.PSKTlsClient;
+import org.spongycastle.crypto.tls.PSKTlsServer;
+import org.spongycastle.crypto.tls.ProtocolVersion;
+import org.spongycastle.crypto.tls.TlsClientProtocol;
+import org.spongycastle.crypto.tls.TlsPSKIdentity;
+import org.spongycastle.crypto.tls.TlsPSKIdentityManager;
+import org.spongycastle.crypto.tls.TlsProtocol;
+import org.spongycastle.crypto.tls.TlsServerProtocol;
+
+/**
+ * Measures how long each suite in {@link SecureConnection#DEFAULT_CIPHER_SUITES}
+ * and {@link SecureConnection#FAST_CIPHER_SUITES} takes to encrypt frames of
+ * typical sizes, and how many bytes each puts on the wire. A client and server
+ * are connected in memory, so no time is spent on sockets.
+ *
+ * Every suite is checked to work on each test run, but the timings are only taken
+ * when run with <code>-Dbenchmark.frames=N</code>.
+ * @author william
+ *
+ */
+public class CipherSuiteBenchmark {
+
+	private static final int[] FRAME_SIZES = { 32, 64, 128, 256, 1024 };
+	private static final int WARMUP_FRAMES = 200;
+
+	private static final byte[] PSK = new byte[] {
+		0x3f, 0x12, 0x55, 0x70, 0x1a, 0x2b, 0x09, 0x6e, 0x44, 0x71, 0x33, 0x0c, 0x5d, 0x29, 0x7a, 0x18,
+	};
+	private static final byte[] IDENTITY = "device".getBytes();
+
+	private static final class Pair {
+		final TlsClientProtocol client = new TlsClientProtocol(new SecureRandom());
+		final TlsServerProtocol server = new TlsServerProtocol(new SecureRandom());
+		final byte[] buffer = new byte[32768];
+
+		/**
+		 * Moves data both ways until neither side has anything more to say.
+		 */
+		void pump() throws IOException {
+			boolean moved = true;
+			while(moved) {
+				moved = transfer(client, server) | transfer(server, client);
+			}
+		}
+
+		private boolean transfer(TlsProtocol from, TlsProtocol to) throws IOException {
+			final int available = from.getAvailableOutputBytes();
+			if(available == 0) return false;
+			final int read = from.readOutput(buffer, 0, Math.min(available, buffer.length));
+			byte[] data = new byte[read];
+			System.arraycopy(buffer, 0, data, 0, read);
+			to.offerInput(data);
+			return true;
+		}
+	}
+
+	private static Pair connect(final int suite) throws IOException {
+		Pair pair = new Pair();
+		pair.client.connect(new PSKTlsClient(new TlsPSKIdentity() {
+			@Override
+			public void skipIdentityHint() { }
+			@Override
+			public void notifyIdentityHint(byte[] hint) { }
+			@Override
+			public byte[] getPSKIdentity() {
+				return IDENTITY;
+			}
+			@Override
+			public byte[] getPSK() {
+				return PSK.clone(); // TLS clears it after use
+			}
+		}) {
+			@Override
+			public int[] getCipherSuites() {
+				return new int[] { suite };
+			}
+		});
+		pair.server.accept(new PSKTlsServer(new TlsPSKIdentityManager() {
+			@Override
+			public byte[] getHint() {
+				return "computer".getBytes();
+			}
+			@Override
+			public byte[] getPSK(byte[] identity) {
+				return PSK.clone(); // TLS clears it after use
+			}
+		}) {
+			@Override
+			protected int[] getCipherSuites() {
+				return new int[] { suite };
+			}
+			@Override
+			protected ProtocolVersion getMaximumVersion() {
+				return ProtocolVersion.TLSv12;
+			}
+		});
+		pair.pump();
+		return pair;
+	}
+
+	/**
+	 * Returns every suite which can be offered, each once, in order of preference.
+	 */
+	private static List<Integer> allSuites() {
+		List<Integer> suites = new ArrayList<Integer>();
+		for(int suite : SecureConnection.DEFAULT_CIPHER_SUITES)
+			if(!suites.contains(suite)) suites.add(suite);
+		for(int suite : SecureConnection.FAST_CIPHER_SUITES)
+			if(!suites.contains(suite)) suites.add(suite);
+		return suites;
+	}
+
+	@Test
+	public void everySuiteWorks() throws IOException {
+		for(int suite : allSuites())
+			checkDecrypts(connect(suite));
+	}
+
+	@Test
+	public void benchmarkSuites() throws IOException {
+		final Integer frames = Integer.getInteger("benchmark.frames");
+		assumeTrue(frames != null);
+		System.out.println("Suite    Frame  ns/frame  wire bytes");
+		for(int suite : allSuites()) {
+			Pair pair = connect(suite);
+			for(int size : FRAME_SIZES) {
+				byte[] frame = new byte[size];
+				for(int i = 0; i < size; i++) frame[i] = (byte)i;
+
+				encrypt(pair, frame, WARMUP_FRAMES);
+				long start = System.nanoTime();
+				int wire = encrypt(pair, frame, frames);
+				long time = System.nanoTime() - start;
+
+				assertTrue(wire > size);
+				System.out.println(String.format("0x%04x  %5d  %8d  %10d", suite, size, time / frames, wire));
+			}
+		}
+	}
+
+	/**
+	 * Encrypts a frame <code>count</code> times, as {@link SecureConnection} does.
+	 * @return The number of bytes the last frame took
+	 */
+	private static int encrypt(Pair pair, byte[] frame, int count) throws IOException {
+		int read = 0;
+		for(int i = 0; i < count; i++) {
+			pair.client.offerOutput(frame, 0, frame.length);
+			read = pair.client.readOutput(pair.buffer, 0, pair.client.getAvailableOutputBytes());
+		}
+		return read;
+	}
+
+	private static void checkDecrypts(Pair pair) throws IOException {
+		byte[] frame = "DPAD frame".getBytes();
+		pair.client.offerOutput(frame, 0, frame.length);
+		pair.pump();
+		assertEquals(frame.length, pair.server.getAvailableInputBytes());
+		byte[] received = new byte[frame.length];
+		pair.server.readInput(received, 0, received.length);
+		assertArrayEquals(frame, received);
+	}
+}
@@ -0,0 +1,159 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.digitalsquid.droidpad.serialise.BinarySerialiser;
+
+/**
+ * Feeds {@link CommandParser} commands in awkward pieces, checking each
+ * one is parsed exactly once.
+ * @author william
+ *
+ */
+public class CommandParserTest {
+
+	private final List<long[]> commands = new ArrayList<long[]>();
+
+	private final CommandParser.Listener listener = new CommandParser.Listener() {
+		@Override
+		public void onCommand(int command, long argument, long argument2) {
+			commands.add(new long[] { command, argument, argument2 });
+		}
+	};
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+
+	private void writeCommand(int command) throws IOException {
+		out.write(BinarySerialiser.CMD_HEADER_BYTES);
+		out.writeInt(command);
+	}
+
+	/**
+	 * Writes a ping, a change of interval and a negotiation.
+	 */
+	private void writeCommands() throws IOException {
+		writeCommand(CommandParser.CMD_PING);
+		out.writeLong(0x0102030405060708L);
+		writeCommand(CommandParser.CMD_SET_INTERVAL);
+		out.writeInt(20000);
+		writeCommand(CommandParser.CMD_NEGOTIATE);
+		out.writeInt(2);
+		out.writeInt(BinarySerialiser.FEATURE_PING);
+		out.writeInt(5000);
+	}
+
+	private void assertCommands() {
+		assertEquals(3, commands.size());
+		assertArrayEquals(new long[] { CommandParser.CMD_PING, 0x0102030405060708L, 0 }, commands.get(0));
+		assertArrayEquals(new long[] { CommandParser.CMD_SET_INTERVAL, 20000, 0 }, commands.get(1));
+		assertArrayEquals(new long[] { CommandParser.CMD_NEGOTIATE,
+				(2L << 32) | BinarySerialiser.FEATURE_PING, 5000 }, commands.get(2));
+	}
+
+	@Test
+	public void severalCommandsInOneRead() throws IOException {
+		writeCommands();
+		byte[] data = bytes.toByteArray();
+		new CommandParser(listener, false).parse(data, 0, data.length);
+		assertCommands();
+	}
+
+	@Test
+	public void commandsSplitAcrossReads() throws IOException {
+		writeCommands();
+		byte[] data = bytes.toByteArray();
+		CommandParser parser = new CommandParser(listener, false);
+		for(int i = 0; i < data.length; i++) parser.parse(data, i, 1);
+		assertCommands();
+	}
+
+	@Test
+	public void everySplitPointWorks() throws IOException {
+		writeCommands();
+		byte[] data = bytes.toByteArray();
+		for(int split = 0; split <= data.length; split++) {
+			commands.clear();
+			CommandParser parser = new CommandParser(listener, false);
+			parser.parse(data, 0, split);
+			parser.parse(data, split, data.length - split);
+			assertCommands();
+		}
+	}
+
+	@Test
+	public void resynchronisesAfterGarbage() throws IOException {
+		out.writeBytes("junk\r\n");
+		// A header which breaks off part way, straight into a real one
+		out.writeBytes("DCD");
+		writeCommands();
+		byte[] data = bytes.toByteArray();
+		new CommandParser(listener, false).parse(data, 0, data.length);
+		assertCommands();
+	}
+
+	@Test
+	public void commandsWithoutPayload() throws IOException {
+		writeCommand(CommandParser.CMD_STOP);
+		writeCommand(CommandParser.CMD_REQUEST_KEYFRAME);
+		byte[] data = bytes.toByteArray();
+		new CommandParser(listener, false).parse(data, 0, data.length);
+		assertEquals(2, commands.size());
+		assertArrayEquals(new long[] { CommandParser.CMD_STOP, 0, 0 }, commands.get(0));
+		assertArrayEquals(new long[] { CommandParser.CMD_REQUEST_KEYFRAME, 0, 0 }, commands.get(1));
+	}
+
+	@Test
+	public void tagsAreOnlyParsedWhenAccepted() throws IOException {
+		out.writeBytes("<BINARY>\n<DATAGRAM>3141</DATAGRAM>\n<DATAGRAM>port</DATAGRAM><STOP>");
+		byte[] data = bytes.toByteArray();
+
+		new CommandParser(listener, false).parse(data, 0, data.length);
+		assertEquals(0, commands.size());
+
+		CommandParser parser = new CommandParser(listener, true);
+		for(int i = 0; i < data.length; i++) parser.parse(data, i, 1);
+		assertEquals(4, commands.size());
+		assertArrayEquals(new long[] { CommandParser.CMD_BINARY, 0, 0 }, commands.get(0));
+		assertArrayEquals(new long[] { CommandParser.CMD_DATAGRAM, 3141, 0 }, commands.get(1));
+		assertArrayEquals(new long[] { CommandParser.CMD_DATAGRAM, -1, 0 }, commands.get(2));
+		assertArrayEquals(new long[] { CommandParser.CMD_STOP, 0, 0 }, commands.get(3));
+	}
+
+	@Test
+	public void overlongTagIsIgnored() throws IOException {
+		out.writeBytes("<");
+		for(int i = 0; i < 100; i++) out.writeBytes("X");
+		out.writeBytes("><STOP>");
+		byte[] data = bytes.toByteArray();
+		new CommandParser(listener, true).parse(data, 0, data.length);
+		assertEquals(1, commands.size());
+		assertEquals(CommandParser.CMD_STOP, commands.get(0)[0]);
+	}
+}
@@ -0,0 +1,300 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.digitalsquid.droidpad.Pairing.DevicePair;
+import uk.digitalsquid.droidpad.buttons.Layout;
+import uk.digitalsquid.droidpad.buttons.ModeSpec;
+import uk.digitalsquid.droidpad.serialise.BinarySerialiser;
+import uk.digitalsquid.droidpad.transport.MemoryTransport;
+import uk.digitalsquid.droidpad.transport.MemoryTransportServer;
+import uk.digitalsquid.droidpad.transport.TransportServer;
+import android.app.Application;
+
+/**
+ * Runs the engine with a computer connected over a {@link MemoryTransportServer},
+ * checking what a plain (text protocol) session sends, the states reported and
+ * what is agreed when the computer negotiates.
+ * @author william
+ *
+ */
+public class ConnectionEngineTest {
+
+	private static final long TIMEOUT = 2000;
+
+	private final Layout layout = new Layout();
+	private final SensorRing sensorRing = new SensorRing();
+	private final SensorHistory accelerometerHistory = new SensorHistory(3);
+	private final SensorHistory gyroscopeHistory = new SensorHistory(4);
+
+	private final BlockingQueue<Integer> states = new LinkedBlockingQueue<Integer>();
+
+	private MemoryTransportServer server;
+	private ConnectionEngine engine;
+
+	private final ConnectionCallbacks callbacks = new ConnectionCallbacks() {
+		@Override
+		public void onConnectionFinished() {
+		}
+
+		@Override
+		public Layout getScreenData() {
+			return layout;
+		}
+
+		@Override
+		public void broadcastState(int status, String connectedPc) {
+			states.add(status);
+		}
+
+		@Override
+		public void broadcastAlert(int type) {
+		}
+
+		@Override
+		public SensorHistory getAccelerometerHistory() {
+			return accelerometerHistory;
+		}
+
+		@Override
+		public SensorHistory getGyroscopeHistory() {
+			return gyroscopeHistory;
+		}
+
+		@Override
+		public SensorRing getSensorRing() {
+			return sensorRing;
+		}
+
+		@Override
+		public DevicePair findDevicePair(UUID computerId) {
+			return null;
+		}
+
+		@Override
+		public Application getApplication() {
+			return null;
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		server = new MemoryTransportServer();
+		ModeSpec spec = new ModeSpec();
+		spec.setMode(ModeSpec.LAYOUTS_JS);
+		spec.setLayout(layout);
+
+		ConnectionInfo info = new ConnectionInfo();
+		info.port = 0; // Any free port, as the computer connects through the server above
+		info.securePort = 0;
+		info.interval = 0.01f;
+		info.spec = spec;
+		info.callbacks = callbacks;
+		info.extraServers = new TransportServer[] { server };
+
+		// Callbacks are called straight from the engine's thread
+		engine = new ConnectionEngine(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		engine.start(info);
+	}
+
+	@After
+	public void tearDown() {
+		engine.stop();
+	}
+
+	@Test
+	public void sendsHeaderThenFrames() throws IOException, InterruptedException {
+		MemoryTransport computer = server.connect("computer");
+		String header = readLine(computer);
+		assertTrue(header, header.startsWith("<MODE>1</MODE><MODESPEC>1,0,0</MODESPEC><SUPPORTSBINARY>"));
+		assertEquals(ConnectionEngine.STATE_CONNECTED, nextState());
+		// No sensor readings or items, so every value is zero
+		assertEquals("[{0.0,0.0,0.0}]", readLine(computer));
+		assertEquals("[{0.0,0.0,0.0}]", readLine(computer));
+	}
+
+	@Test
+	public void stoppingSendsStopMessage() throws IOException, InterruptedException {
+		MemoryTransport computer = server.connect("computer");
+		readLine(computer);
+		assertEquals(ConnectionEngine.STATE_CONNECTED, nextState());
+		engine.stop();
+		String rest = readToEnd(computer);
+		assertTrue(rest, rest.endsWith("<STOP>\n"));
+		assertEquals(ConnectionEngine.STATE_WAITING, nextState());
+	}
+
+	@Test
+	public void computerClosingLosesConnection() throws IOException, InterruptedException {
+		MemoryTransport computer = server.connect("computer");
+		readLine(computer);
+		assertEquals(ConnectionEngine.STATE_CONNECTED, nextState());
+		computer.close();
+		assertEquals(ConnectionEngine.STATE_CONNECTION_LOST, nextState());
+	}
+
+	@Test
+	public void negotiationOnlyAgreesSupportedFeatures() throws IOException, InterruptedException {
+		MemoryTransport computer = server.connect("computer");
+		readLine(computer);
+		sendNegotiate(computer, BinarySerialiser.PROTOCOL_VERSION + 5,
+				BinarySerialiser.FEATURE_DELTA | BinarySerialiser.FEATURE_TIMESTAMPS |
+				BinarySerialiser.FEATURE_SECURE_DATAGRAM | 0x10000, 20000);
+		int[] capabilities = readCapabilities(computer);
+		assertEquals(BinarySerialiser.PROTOCOL_VERSION, capabilities[0]);
+		// Secure datagrams are only for secure connections, and the last bit means nothing yet
+		assertEquals(BinarySerialiser.FEATURE_DELTA | BinarySerialiser.FEATURE_TIMESTAMPS, capabilities[1]);
+		assertEquals(20000, capabilities[2], 1);
+	}
+
+	@Test
+	public void compactFramesReplaceDelta() throws IOException, InterruptedException {
+		MemoryTransport computer = server.connect("computer");
+		readLine(computer);
+		sendNegotiate(computer, BinarySerialiser.PROTOCOL_VERSION, -1, 0);
+		int[] capabilities = readCapabilities(computer);
+		assertEquals(BinarySerialiser.FEATURE_TIMESTAMPS |
+				BinarySerialiser.FEATURE_PING |
+				BinarySerialiser.FEATURE_SAMPLES |
+				BinarySerialiser.FEATURE_COMPACT |
+				BinarySerialiser.FEATURE_DATAGRAM |
+				BinarySerialiser.FEATURE_LAYOUT_CHANGE |
+				BinarySerialiser.FEATURE_SLOW_CONSUMER, capabilities[1]);
+		// The interval is left alone
+		assertEquals(10000, capabilities[2], 1);
+	}
+
+	@Test
+	public void renegotiatingReplacesFeatures() throws IOException, InterruptedException {
+		MemoryTransport computer = server.connect("computer");
+		readLine(computer);
+		sendNegotiate(computer, BinarySerialiser.PROTOCOL_VERSION,
+				BinarySerialiser.FEATURE_DELTA | BinarySerialiser.FEATURE_PING, 0);
+		assertEquals(BinarySerialiser.FEATURE_DELTA | BinarySerialiser.FEATURE_PING,
+				readCapabilities(computer)[1]);
+		sendNegotiate(computer, BinarySerialiser.PROTOCOL_VERSION, BinarySerialiser.FEATURE_TIMESTAMPS, 0);
+		assertEquals(BinarySerialiser.FEATURE_TIMESTAMPS, readCapabilities(computer)[1]);
+	}
+
+	private static void sendNegotiate(MemoryTransport to, int version, int features, int interval) throws IOException {
+		ByteBuffer command = ByteBuffer.allocate(20);
+		command.put(BinarySerialiser.CMD_HEADER_BYTES);
+		command.putInt(CommandParser.CMD_NEGOTIATE);
+		command.putInt(version);
+		command.putInt(features);
+		command.putInt(interval);
+		command.flip();
+		while(command.hasRemaining()) to.write(command);
+	}
+
+	/**
+	 * Skips to the next reply to a negotiation, which may come between frames.
+	 * @return The version, features and interval agreed
+	 */
+	private static int[] readCapabilities(MemoryTransport from) throws IOException, InterruptedException {
+		final String header = "DCAP";
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		int matched = 0;
+		while(matched < header.length()) {
+			final int b = readByte(from, end);
+			if(b == header.charAt(matched)) matched++;
+			else matched = b == header.charAt(0) ? 1 : 0;
+		}
+		int[] capabilities = new int[3];
+		for(int i = 0; i < capabilities.length; i++) {
+			for(int j = 0; j < 4; j++) capabilities[i] = (capabilities[i] << 8) | readByte(from, end);
+		}
+		return capabilities;
+	}
+
+	private static int readByte(MemoryTransport from, long end) throws IOException, InterruptedException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		while(System.currentTimeMillis() < end) {
+			int read = from.read(buffer);
+			if(read < 0) break;
+			if(read == 0) {
+				Thread.sleep(1);
+				continue;
+			}
+			return buffer.get(0) & 0xFF;
+		}
+		throw new IOException("Nothing more read");
+	}
+
+	private int nextState() throws InterruptedException {
+		Integer state = states.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		return state == null ? 0 : state;
+	}
+
+	/**
+	 * Reads up to the next newline, which isn't included.
+	 */
+	private static String readLine(MemoryTransport from) throws IOException, InterruptedException {
+		StringBuilder line = new StringBuilder();
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		while(System.currentTimeMillis() < end) {
+			buffer.clear();
+			int read = from.read(buffer);
+			if(read < 0) break;
+			if(read == 0) {
+				Thread.sleep(1);
+				continue;
+			}
+			if(buffer.get(0) == '\n') return line.toString();
+			line.append((char)buffer.get(0));
+		}
+		throw new IOException("No line read, only \"" + line + "\"");
+	}
+
+	/**
+	 * Reads until the engine closes the connection.
+	 */
+	private static String readToEnd(MemoryTransport from) throws IOException, InterruptedException {
+		StringBuilder data = new StringBuilder();
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		while(System.currentTimeMillis() < end) {
+			buffer.clear();
+			int read = from.read(buffer);
+			if(read < 0) return data.toString();
+			if(read == 0) Thread.sleep(1);
+			data.append(new String(buffer.array(), 0, read < 0 ? 0 : read));
+		}
+		throw new IOException("Connection not closed");
+	}
+}
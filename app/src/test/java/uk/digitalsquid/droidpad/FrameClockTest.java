@@ -0,0 +1,87 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link FrameClock} ticks on its deadlines and skips the ones
+ * it is too late for, rather than catching up.
+ * @author william
+ *
+ */
+public class FrameClockTest {
+
+	private static final long MS = 1000L * 1000L;
+
+	@Test
+	public void doesNotTickBeforeTheDeadline() {
+		FrameClock clock = new FrameClock(1);
+		clock.start();
+		assertFalse(clock.pollTick());
+		final long wait = clock.nanosUntilTick();
+		assertTrue(wait > 0 && wait <= 1000 * MS);
+		assertEquals(0, clock.getTicks());
+	}
+
+	@Test
+	public void ticksOncePerDeadline() throws InterruptedException {
+		FrameClock clock = new FrameClock(0.02f);
+		clock.start();
+		Thread.sleep(25);
+		assertEquals(0, clock.nanosUntilTick());
+		assertTrue(clock.pollTick());
+		// The next deadline is still to come
+		assertFalse(clock.pollTick());
+		assertTrue(clock.nanosUntilTick() > 0);
+		assertEquals(1, clock.getTicks());
+		assertEquals(0, clock.getOverruns());
+		assertEquals(0, clock.getSkipped());
+	}
+
+	@Test
+	public void missedDeadlinesAreSkipped() throws InterruptedException {
+		FrameClock clock = new FrameClock(0.01f);
+		clock.start();
+		// Deadlines at 10, 20, 30, 40 and 50ms have all passed
+		Thread.sleep(55);
+		assertTrue(clock.pollTick());
+		assertEquals(1, clock.getTicks());
+		assertEquals(1, clock.getOverruns());
+		assertTrue(clock.getSkipped() >= 4);
+		// Only one tick for them all, and the next deadline is less than an interval away
+		assertFalse(clock.pollTick());
+		final long wait = clock.nanosUntilTick();
+		assertTrue(wait > 0 && wait <= 10 * MS);
+		assertTrue(clock.getLastJitter() >= 45 * MS);
+	}
+
+	@Test
+	public void intervalIsInSeconds() {
+		FrameClock clock = new FrameClock(0.05f);
+		assertEquals(0.05f, clock.getInterval(), 1e-6f);
+		clock.setInterval(0.5f);
+		assertEquals(0.5f, clock.getInterval(), 1e-6f);
+		clock.start();
+		assertTrue(clock.nanosUntilTick() > 400 * MS);
+	}
+}
@@ -0,0 +1,90 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the buckets, percentiles and clock offset kept by {@link LatencyHistogram}.
+ * @author william
+ *
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogramReportsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(0.5f));
+		assertEquals(0, histogram.getLastRtt());
+		assertEquals(0, histogram.getMinRtt());
+		assertEquals(0, histogram.getOffset());
+	}
+
+	@Test
+	public void roundTripsAreBucketed() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.add(1000, 0); // On a limit, so in the lower bucket
+		histogram.add(1001, 0);
+		histogram.add(15000, 0);
+		histogram.add(10L * 1000L * 1000L, 0);
+		assertEquals(1, histogram.getBucketCount(0));
+		assertEquals(1, histogram.getBucketCount(1));
+		assertEquals(1, histogram.getBucketCount(4));
+		assertEquals(1, histogram.getBucketCount(LatencyHistogram.getBucketTotal() - 1));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketLimit(LatencyHistogram.getBucketTotal() - 1));
+	}
+
+	@Test
+	public void percentilesAreBucketLimits() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 0; i < 9; i++) histogram.add(1500, 0);
+		histogram.add(300000, 0);
+		assertEquals(2000, histogram.getPercentile(0.5f));
+		assertEquals(2000, histogram.getPercentile(0.9f));
+		assertEquals(500000, histogram.getPercentile(0.99f));
+		assertEquals(500000, histogram.getPercentile(1));
+	}
+
+	@Test
+	public void offsetIsFromTheFastestRoundTrip() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.add(8000, 100);
+		histogram.add(2000, 250);
+		histogram.add(9000, 400);
+		assertEquals(2000, histogram.getMinRtt());
+		assertEquals(250, histogram.getOffset());
+		assertEquals(9000, histogram.getLastRtt());
+	}
+
+	@Test
+	public void onlyTheLastWindowIsKept() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.add(500, 7);
+		for(int i = 0; i < LatencyHistogram.WINDOW; i++) histogram.add(30000 + i, 0);
+		assertEquals(LatencyHistogram.WINDOW, histogram.getCount());
+		// The fast round trip has dropped out of the window and its bucket
+		assertEquals(0, histogram.getBucketCount(0));
+		assertEquals(LatencyHistogram.WINDOW, histogram.getBucketCount(5));
+		assertEquals(30000, histogram.getMinRtt());
+		assertEquals(0, histogram.getOffset());
+		assertEquals(30000 + LatencyHistogram.WINDOW - 1, histogram.getLastRtt());
+	}
+}
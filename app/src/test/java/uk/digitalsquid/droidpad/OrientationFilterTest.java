@@ -0,0 +1,151 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs {@link OrientationFilter} over synthetic sensor traces.
+ * @author william
+ *
+ */
+public class OrientationFilterTest {
+
+	private static final float G = 9.80665f;
+	/**
+	 * 100Hz, as from SENSOR_DELAY_GAME
+	 */
+	private static final long STEP = 10L * 1000L * 1000L;
+	private static final float DT = STEP / 1e9f;
+
+	/**
+	 * Turns the phone at a steady rate about one of its own axes, with gravity along that axis.
+	 * @return The timestamp after the last event
+	 */
+	private static long spin(OrientationFilter filter, long time, float[] axis, float rate, int steps) {
+		for(int i = 0; i < steps; i++) {
+			filter.updateGravity(axis[0] * G, axis[1] * G, axis[2] * G);
+			filter.updateGyroscope(time, axis[0] * rate, axis[1] * rate, axis[2] * rate);
+			time += STEP;
+		}
+		return time;
+	}
+
+	@Test
+	public void headingFollowsTurnWhenFlat() {
+		OrientationFilter filter = new OrientationFilter();
+		spin(filter, 1000, new float[] { 0, 0, 1 }, 1f, 201);
+		// 200 intervals at 1 rad/s
+		assertEquals(2f, filter.getHeading(), 0.01f);
+	}
+
+	@Test
+	public void headingFollowsTurnWhenUpright() {
+		OrientationFilter filter = new OrientationFilter();
+		spin(filter, 1000, new float[] { 0, 1, 0 }, -0.5f, 201);
+		assertEquals(-1f, filter.getHeading(), 0.01f);
+	}
+
+	@Test
+	public void tiltingDoesNotChangeHeading() {
+		OrientationFilter filter = new OrientationFilter();
+		long time = 1000;
+		filter.updateGravity(0, 0, G);
+		// Tip forwards by 90 degrees about the phone's x axis
+		for(int i = 0; i <= 100; i++) {
+			final double angle = Math.PI / 2 * i / 100;
+			filter.updateGravity(0, (float)Math.sin(angle) * G, (float)Math.cos(angle) * G);
+			filter.updateGyroscope(time, (float)(Math.PI / 2), 0, 0);
+			time += STEP;
+		}
+		assertEquals(0f, filter.getHeading(), 0.01f);
+		float[] up = new float[3];
+		filter.getUp(up);
+		assertEquals(1f, up[1], 0.01f);
+	}
+
+	@Test
+	public void gravityCorrectsDrift() {
+		OrientationFilter filter = new OrientationFilter();
+		long time = 1000;
+		filter.updateGravity(0, 0, G);
+		// A biased gyroscope on a phone lying still, tilted by 30 degrees, for long
+		// enough that the bias has been learned
+		final float tilt = (float)Math.toRadians(30);
+		for(int i = 0; i < 30000; i++) {
+			filter.updateGravity(0, (float)Math.sin(tilt) * G, (float)Math.cos(tilt) * G);
+			filter.updateGyroscope(time, 0.02f, 0, 0);
+			time += STEP;
+		}
+		float[] up = new float[3];
+		filter.getUp(up);
+		assertEquals(Math.sin(tilt), up[1], 0.01);
+		assertEquals(Math.cos(tilt), up[2], 0.01);
+		assertEquals(0f, filter.getHeading(), 0.01f);
+	}
+
+	@Test
+	public void timestampsGoingBackwardsAreIgnored() {
+		OrientationFilter filter = new OrientationFilter();
+		filter.updateGravity(0, 0, G);
+		filter.updateGyroscope(2 * STEP, 0, 0, 1);
+		assertEquals(0f, filter.updateGyroscope(STEP, 0, 0, 1), 0f);
+		assertEquals(0f, filter.getHeading(), 0f);
+		assertEquals(DT, filter.updateGyroscope(3 * STEP, 0, 0, 1), 1e-6f);
+		assertEquals(DT, filter.getHeading(), 1e-4f);
+	}
+
+	@Test
+	public void longGapsAreNotIntegrated() {
+		OrientationFilter filter = new OrientationFilter();
+		filter.updateGravity(0, 0, G);
+		filter.updateGyroscope(STEP, 0, 0, 1);
+		filter.updateGyroscope(STEP + 2 * OrientationFilter.MAX_INTERVAL, 0, 0, 1);
+		assertEquals(0f, filter.getHeading(), 0f);
+	}
+
+	@Test
+	public void rotationVectorHeadingKeepsCounting() {
+		OrientationFilter filter = new OrientationFilter();
+		float[] values = new float[4];
+		long time = 1000;
+		// Start from an arbitrary yaw, as a game rotation vector might
+		for(int i = 0; i <= 500; i++) {
+			final double angle = 1 + 0.01 * i;
+			values[0] = 0;
+			values[1] = 0;
+			values[2] = (float)Math.sin(angle / 2);
+			values[3] = (float)Math.cos(angle / 2);
+			filter.updateRotationVector(time, values);
+			filter.updateGyroscope(time, 0, 0, 5); // Ignored
+			time += STEP;
+		}
+		assertTrue(filter.isUsingHardware());
+		// Past a half turn, so the sensor's angle has wrapped
+		assertEquals(5f, filter.getHeading(), 0.01f);
+
+		// The gyroscope takes over once the sensor stops
+		time += OrientationFilter.HARDWARE_TIMEOUT;
+		spin(filter, time, new float[] { 0, 0, 1 }, 1f, 101);
+		assertFalse(filter.isUsingHardware());
+		assertEquals(6f, filter.getHeading(), 0.02f);
+	}
+}
@@ -0,0 +1,71 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link SensorClock} keeps the time samples were taken, however late
+ * they are delivered.
+ * @author william
+ *
+ */
+public class SensorClockTest {
+
+	private static final long MS = 1000L * 1000L;
+
+	/**
+	 * The sensor's clock is this far behind {@link System#nanoTime()}
+	 */
+	private static final long OFFSET = 5000 * MS;
+
+	@Test
+	public void firstEventIsTakenAsDeliveredStraightAway() {
+		SensorClock clock = new SensorClock();
+		assertEquals(100 * MS + OFFSET, clock.toNanoTime(100 * MS, 100 * MS + OFFSET));
+	}
+
+	@Test
+	public void lateEventsKeepTheirOwnTime() {
+		SensorClock clock = new SensorClock();
+		clock.toNanoTime(100 * MS, 100 * MS + OFFSET);
+		// Taken 5ms apart but delivered together
+		assertEquals(105 * MS + OFFSET, clock.toNanoTime(105 * MS, 130 * MS + OFFSET));
+		assertEquals(110 * MS + OFFSET, clock.toNanoTime(110 * MS, 130 * MS + OFFSET));
+	}
+
+	@Test
+	public void quickerDeliveryImprovesTheEstimate() {
+		SensorClock clock = new SensorClock();
+		// The first event was already 20ms late
+		clock.toNanoTime(100 * MS, 120 * MS + OFFSET);
+		assertEquals(105 * MS + OFFSET, clock.toNanoTime(105 * MS, 105 * MS + OFFSET));
+		assertEquals(110 * MS + OFFSET, clock.toNanoTime(110 * MS, 125 * MS + OFFSET));
+	}
+
+	@Test
+	public void clocksMovingApartAreFollowed() {
+		SensorClock clock = new SensorClock();
+		clock.toNanoTime(100 * MS, 100 * MS + OFFSET);
+		// The sensor's clock stopped while the phone slept
+		final long slept = 2 * SensorClock.MAX_DELAY;
+		assertEquals(200 * MS + OFFSET + slept, clock.toNanoTime(200 * MS, 200 * MS + OFFSET + slept));
+		assertEquals(205 * MS + OFFSET + slept, clock.toNanoTime(205 * MS, 210 * MS + OFFSET + slept));
+	}
+}
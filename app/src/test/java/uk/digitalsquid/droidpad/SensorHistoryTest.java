@@ -0,0 +1,152 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import uk.digitalsquid.droidpad.SensorHistory.Resampling;
+
+/**
+ * Checks each way {@link SensorHistory} resamples to the frame clock.
+ * @author william
+ *
+ */
+public class SensorHistoryTest {
+
+	private static final long MS = 1000L * 1000L;
+
+	/**
+	 * Adds samples every 5ms, whose x is their time in ms.
+	 */
+	private static SensorHistory ramp(int count) {
+		SensorHistory history = new SensorHistory(3);
+		for(int i = 1; i <= count; i++)
+			history.add(i * 5 * MS, i * 5, -i * 5, 1);
+		return history;
+	}
+
+	@Test
+	public void emptyHistoryLeavesValuesAlone() {
+		SensorHistory history = new SensorHistory(3);
+		float[] dest = { 7, 8, 9 };
+		assertFalse(history.sample(100 * MS, Resampling.HOLD, 20 * MS, dest));
+		assertEquals(7f, dest[0], 0f);
+	}
+
+	@Test
+	public void holdTakesNewestBeforeFrame() {
+		SensorHistory history = ramp(10);
+		float[] dest = new float[3];
+		assertTrue(history.sample(27 * MS, Resampling.HOLD, 20 * MS, dest));
+		assertEquals(25f, dest[0], 0f);
+		assertEquals(-25f, dest[1], 0f);
+		history.sample(1000 * MS, Resampling.HOLD, 20 * MS, dest);
+		assertEquals(50f, dest[0], 0f);
+	}
+
+	@Test
+	public void linearInterpolatesOnePeriodBehind() {
+		SensorHistory history = ramp(10);
+		float[] dest = new float[3];
+		history.sample(27 * MS, Resampling.LINEAR, 20 * MS, dest);
+		assertEquals(22f, dest[0], 0.001f);
+		assertEquals(1f, dest[2], 0.001f);
+		// Past the newest sample it holds rather than guessing
+		history.sample(1000 * MS, Resampling.LINEAR, 20 * MS, dest);
+		assertEquals(50f, dest[0], 0.001f);
+	}
+
+	@Test
+	public void averageCoversOneFrame() {
+		SensorHistory history = ramp(10);
+		float[] dest = new float[3];
+		// Samples at 30, 35, 40, 45 and 50ms
+		history.sample(50 * MS, Resampling.AVERAGE, 22 * MS, dest);
+		assertEquals(40f, dest[0], 0.001f);
+		// No samples in the window, so the last one is held
+		history.sample(80 * MS, Resampling.AVERAGE, 20 * MS, dest);
+		assertEquals(50f, dest[0], 0f);
+	}
+
+	@Test
+	public void averageRemovesAliasing() {
+		// A 100Hz vibration sampled at 400Hz and read at 50Hz; only the steady part should remain
+		SensorHistory history = new SensorHistory(3);
+		float[] average = new float[3];
+		final long step = 2500L * 1000L;
+		for(int i = 1; i <= 400; i++) {
+			final float value = (float)Math.sin(2 * Math.PI * 100 * i * step / 1e9) + 0.5f;
+			history.add(i * step, value, 0, 0);
+			if(i % 8 == 0) {
+				history.sample(i * step, Resampling.AVERAGE, 20 * MS, average);
+				assertEquals(0.5f, average[0], 0.001f);
+			}
+		}
+	}
+
+	@Test
+	public void keepsWorkingAfterWrapping() {
+		SensorHistory history = ramp(SensorHistory.CAPACITY * 3 + 5);
+		float[] dest = new float[3];
+		final long newest = (SensorHistory.CAPACITY * 3 + 5) * 5;
+		history.sample(newest * MS, Resampling.HOLD, 20 * MS, dest);
+		assertEquals(newest, dest[0], 0f);
+		history.sample(newest * MS, Resampling.AVERAGE, 12 * MS, dest);
+		assertEquals(newest - 5, dest[0], 0.001f);
+		assertEquals(0, history.getRetries());
+	}
+
+	@Test
+	public void widthFourKeepsLastValue() {
+		SensorHistory history = new SensorHistory(4);
+		history.add(5 * MS, 1, 2, 3, 4);
+		float[] dest = new float[4];
+		history.sample(5 * MS, Resampling.AVERAGE, 20 * MS, dest);
+		assertEquals(4f, dest[3], 0f);
+	}
+
+	/**
+	 * Reads while another thread adds as fast as it can. Every sample's values agree
+	 * with each other, so a read which mixes two samples shows up.
+	 */
+	@Test
+	public void concurrentReadsAreConsistent() throws InterruptedException {
+		final SensorHistory history = new SensorHistory(3);
+		final long end = System.nanoTime() + 200 * MS;
+		Thread listener = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(long i = 1; System.nanoTime() < end; i++)
+					history.add(i, i, -i, 2 * i);
+			}
+		});
+		listener.start();
+		float[] dest = new float[3];
+		while(System.nanoTime() < end) {
+			for(Resampling mode : new Resampling[] { Resampling.HOLD, Resampling.LINEAR }) {
+				if(!history.sample(Long.MAX_VALUE, mode, 1, dest)) continue;
+				assertEquals(-dest[0], dest[1], Math.abs(dest[0]) * 1e-6f);
+				assertEquals(2 * dest[0], dest[2], Math.abs(dest[0]) * 1e-6f);
+			}
+		}
+		listener.join();
+	}
+}
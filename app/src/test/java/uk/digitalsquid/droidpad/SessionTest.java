@@ -0,0 +1,222 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package uk.digitalsquid.droidpad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.digitalsquid.droidpad.serialise.BinarySerialiser;
+import uk.digitalsquid.droidpad.transport.Transport;
+
+/**
+ * Checks how {@link Session} sends frames when the socket can't keep up:
+ * replacing the waiting frame by default, or queueing them up to a limit.
+ * @author william
+ *
+ */
+public class SessionTest {
+
+	/**
+	 * A socket which only accepts as much as the test allows.
+	 */
+	static final class ThrottledTransport implements Transport {
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		int space;
+		boolean writeInterest;
+
+		@Override
+		public void register(Selector selector, Object attachment) {
+		}
+
+		@Override
+		public void setWriteInterest(boolean interested) {
+			writeInterest = interested;
+		}
+
+		@Override
+		public int read(ByteBuffer dest) {
+			return 0;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			final int length = Math.min(space, src.remaining());
+			written.write(src.array(), src.arrayOffset() + src.position(), length);
+			src.position(src.position() + length);
+			space -= length;
+			return length;
+		}
+
+		@Override
+		public InetAddress getPeerAddress() {
+			return null;
+		}
+
+		@Override
+		public String getPeerName() {
+			return "computer";
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	static class TestSession extends Session {
+		TestSession(Transport transport) {
+			super(new ConnectionEngine(), new ConnectionInfo(), transport);
+		}
+
+		void offer(byte[] frame) throws IOException {
+			offerFrame(frame, 0, frame.length);
+		}
+
+		@Override
+		void onConnected() {
+		}
+
+		@Override
+		void onReceived(byte[] data, int length) {
+		}
+
+		@Override
+		void sendFrame(FrameProducer frames) {
+		}
+
+		@Override
+		void sendStop() {
+		}
+
+		@Override
+		void sendModeSpec() {
+		}
+
+		@Override
+		protected void setFrameFormat(boolean compact, boolean delta) {
+		}
+	}
+
+	private static final byte[] FRAME_1 = { 1, 1, 1, 1 };
+	private static final byte[] FRAME_2 = { 2, 2, 2, 2 };
+	private static final byte[] FRAME_3 = { 3, 3, 3, 3 };
+
+	private ThrottledTransport transport;
+	private TestSession session;
+
+	@Before
+	public void setUp() {
+		transport = new ThrottledTransport();
+		session = new TestSession(transport);
+	}
+
+	private void drain() throws IOException {
+		transport.space = Integer.MAX_VALUE;
+		session.onWritable();
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for(byte[] part : parts) bytes.write(part, 0, part.length);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void framesAreWrittenStraightAway() throws IOException {
+		transport.space = Integer.MAX_VALUE;
+		session.offer(FRAME_1);
+		session.offer(FRAME_2);
+		assertArrayEquals(concat(FRAME_1, FRAME_2), transport.written.toByteArray());
+		assertFalse(session.hasWaitingFrame());
+		assertFalse(transport.writeInterest);
+		assertEquals(2, session.getFramesWritten());
+		assertEquals(0, session.getSupersededFrames());
+	}
+
+	@Test
+	public void waitingFrameIsReplacedByNewerOne() throws IOException {
+		// Half of the first frame fits, so it is finished before any other
+		transport.space = 2;
+		session.offer(FRAME_1);
+		assertTrue(transport.writeInterest);
+		assertEquals(1, session.getWriteStalls());
+		session.offer(FRAME_2);
+		assertTrue(session.hasWaitingFrame());
+		session.offer(FRAME_3);
+		assertEquals(1, session.getSupersededFrames());
+
+		drain();
+		assertArrayEquals(concat(FRAME_1, FRAME_3), transport.written.toByteArray());
+		assertFalse(session.hasWaitingFrame());
+		assertFalse(transport.writeInterest);
+		assertEquals(2, session.getFramesWritten());
+		assertEquals(8, session.getFrameBytes());
+		assertEquals(8, session.getWireBytes());
+	}
+
+	@Test
+	public void messagesGoAheadOfWaitingFrames() throws IOException {
+		session.offer(FRAME_1);
+		session.offer(FRAME_2);
+		session.onCommand(CommandParser.CMD_PING, 5, 0);
+
+		drain();
+		byte[] pong = new byte[BinarySerialiser.PONG_SIZE];
+		BinarySerialiser.writePong(pong, 5);
+		assertArrayEquals(concat(FRAME_1, pong, FRAME_2), transport.written.toByteArray());
+	}
+
+	@Test
+	public void queuedFramesAreAllSent() throws IOException {
+		session.onCommand(CommandParser.CMD_SLOW_CONSUMER, BinarySerialiser.SLOW_CONSUMER_QUEUE, 0);
+		session.offer(FRAME_1);
+		session.offer(FRAME_2);
+		session.offer(FRAME_3);
+		assertFalse(session.hasWaitingFrame());
+
+		drain();
+		assertArrayEquals(concat(FRAME_1, FRAME_2, FRAME_3), transport.written.toByteArray());
+		assertEquals(0, session.getSupersededFrames());
+		assertEquals(3, session.getFramesWritten());
+	}
+
+	@Test
+	public void computerTooFarBehindIsDropped() throws IOException {
+		session.onCommand(CommandParser.CMD_SLOW_CONSUMER, BinarySerialiser.SLOW_CONSUMER_QUEUE, 0);
+		final byte[] frame = new byte[1024];
+		final int fits = Session.MAX_QUEUED_BYTES / frame.length + 1;
+		for(int i = 0; i < fits; i++) session.offer(frame);
+		try {
+			session.offer(frame);
+			fail("Frame queued beyond the limit");
+		} catch(IOException e) {
+			// Expected
+		}
+	}
+}
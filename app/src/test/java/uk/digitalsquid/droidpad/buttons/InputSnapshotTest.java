@@ -0,0 +1,169 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package uk.digitalsquid.droidpad.buttons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link InputSnapshot} passes on every press, however short,
+ * and reports presses and releases as they happen.
+ * @author william
+ *
+ */
+public class InputSnapshotTest {
+
+	private Layout layout;
+	private Button button;
+	private ToggleButton toggle;
+	private Slider slider;
+	private InputSnapshot snapshot;
+	private int edges;
+
+	@Before
+	public void setUp() {
+		button = new Button(0, 0, 1, 1, "A");
+		toggle = new ToggleButton(1, 0, 1, 1, "B");
+		slider = new Slider(2, 0, 1, 1, Orientation.X);
+		layout = new Layout(new Item[] { button, toggle, slider });
+		snapshot = layout.getSnapshot();
+		snapshot.setEdgeListener(new InputSnapshot.EdgeListener() {
+			@Override
+			public void onInputEdge() {
+				edges++;
+			}
+		});
+	}
+
+	/**
+	 * Runs one touch event in which only the given items are touched, as the UI does.
+	 */
+	private void touch(Item... touched) {
+		for(Item item : layout) item.resetStickyLock();
+		for(Item item : touched) item.onMouseOn(null, 0, 0);
+		for(Item item : layout) item.finaliseState();
+		layout.publishState();
+	}
+
+	private int value(int item, int index) {
+		return snapshot.getValues()[item * InputSnapshot.VALUES_PER_ITEM + index];
+	}
+
+	@Test
+	public void nothingToReadBeforePublishing() {
+		assertFalse(snapshot.read());
+		assertEquals(0, snapshot.getCount());
+	}
+
+	@Test
+	public void readerSeesLatestState() {
+		touch(button);
+		slider.ax = 1234;
+		layout.publishState();
+		assertTrue(snapshot.read());
+		assertEquals(3, snapshot.getCount());
+		assertEquals(Item.FLAG_BUTTON, value(0, 0));
+		assertEquals(1, value(0, 1));
+		assertEquals(1234, value(2, 1));
+		assertFalse(snapshot.read());
+	}
+
+	@Test
+	public void shortPressIsLatchedForOneRead() {
+		// Pressed and released between two reads
+		touch(button);
+		touch();
+		assertTrue(snapshot.read());
+		assertEquals(1, value(0, 1));
+		// Released on the next read, without anything being published
+		assertTrue(snapshot.read());
+		assertEquals(0, value(0, 1));
+		assertFalse(snapshot.read());
+	}
+
+	@Test
+	public void releaseAfterPressWasReadIsNotLatched() {
+		touch(button);
+		assertTrue(snapshot.read());
+		assertEquals(1, value(0, 1));
+		touch();
+		assertTrue(snapshot.read());
+		assertEquals(0, value(0, 1));
+	}
+
+	@Test
+	public void toggleButtonsAreNotLatched() {
+		toggle.onMouseOff();
+		touch();
+		toggle.onMouseOff();
+		touch();
+		assertTrue(snapshot.read());
+		assertEquals(0, value(1, 1));
+		assertFalse(snapshot.read());
+	}
+
+	@Test
+	public void tapIsSentOnceThenReleased() {
+		layout.tapDefaultButton();
+		button.finaliseState();
+		layout.publishState();
+		// The button itself is released as soon as its state has been published
+		assertFalse(button.isSelected());
+		assertTrue(snapshot.read());
+		assertEquals(1, value(0, 1));
+		assertTrue(snapshot.read());
+		assertEquals(0, value(0, 1));
+
+		touch();
+		assertTrue(snapshot.read());
+		assertEquals(0, value(0, 1));
+	}
+
+	@Test
+	public void pressesAndReleasesAreEdges() {
+		touch(button);
+		assertEquals(1, edges);
+		touch(button);
+		assertEquals(1, edges);
+		touch();
+		assertEquals(2, edges);
+		toggle.onMouseOff();
+		touch();
+		assertEquals(3, edges);
+		// Moving a slider isn't an edge
+		slider.ax = 100;
+		layout.publishState();
+		assertEquals(3, edges);
+	}
+
+	@Test
+	public void publishedValuesAreCopied() {
+		int[] values = { Item.FLAG_BUTTON, 1, 0, 0 };
+		snapshot.publish(values, 1);
+		values[1] = 0;
+		assertTrue(snapshot.read());
+		assertEquals(1, snapshot.getCount());
+		assertEquals(1, value(0, 1));
+		// Nothing is latched for values published directly
+		assertFalse(snapshot.read());
+	}
+}
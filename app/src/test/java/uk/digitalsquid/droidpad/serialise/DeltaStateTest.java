@@ -0,0 +1,146 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package uk.digitalsquid.droidpad.serialise;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.digitalsquid.droidpad.Vec3;
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.Item;
+
+/**
+ * Checks when {@link DeltaState} decides that a keyframe is needed, and which
+ * parts of a frame count as changed.
+ * @author william
+ *
+ */
+public class DeltaStateTest {
+
+	private static final long NOW = 1000L * 1000L * 1000L * 1000L;
+
+	private DeltaState state;
+	private Vec3 accel;
+	private AnalogueData analogue;
+	private int[] items;
+
+	@Before
+	public void setUp() {
+		state = new DeltaState();
+		accel = new Vec3(0, 0, 9.8f);
+		analogue = new AnalogueData(accel, null, 0, false, false);
+		items = new int[] {
+				Item.FLAG_BUTTON, 0, 0, 0,
+				Item.FLAG_SLIDER | Item.FLAG_HAS_Y_AXIS, 0, 100, 0,
+		};
+	}
+
+	private void capture() {
+		state.capture(analogue, items, items.length / 4);
+	}
+
+	@Test
+	public void startsWithAKeyframe() {
+		capture();
+		assertTrue(state.needsKeyframe(NOW));
+		state.markKeyframeSent(NOW);
+		capture();
+		assertFalse(state.needsKeyframe(NOW));
+		assertFalse(state.itemChanged(0));
+		assertFalse(state.itemChanged(1));
+		assertFalse(state.accelChanged());
+	}
+
+	@Test
+	public void keyframesAreSentPeriodically() {
+		capture();
+		state.markKeyframeSent(NOW);
+		assertFalse(state.needsKeyframe(NOW + DeltaState.KEYFRAME_INTERVAL - 1));
+		assertTrue(state.needsKeyframe(NOW + DeltaState.KEYFRAME_INTERVAL));
+	}
+
+	@Test
+	public void keyframesCanBeRequested() {
+		capture();
+		state.markKeyframeSent(NOW);
+		state.requestKeyframe();
+		assertTrue(state.needsKeyframe(NOW));
+	}
+
+	@Test
+	public void layoutChangeForcesAKeyframe() {
+		capture();
+		state.markKeyframeSent(NOW);
+		items = new int[] { Item.FLAG_BUTTON, 1, 0, 0 };
+		capture();
+		assertTrue(state.needsKeyframe(NOW));
+	}
+
+	@Test
+	public void onlyChangedItemsAreReported() {
+		capture();
+		state.markKeyframeSent(NOW);
+		items[4 + 2] = 200;
+		capture();
+		assertFalse(state.itemChanged(0));
+		assertTrue(state.itemChanged(1));
+		state.markItemSent(1);
+		assertFalse(state.itemChanged(1));
+	}
+
+	@Test
+	public void accelerometerChangesBelowTheThresholdAreIgnored() {
+		state.setAccelerometerThresholds(0.5f, 0.5f, 0.5f);
+		capture();
+		state.markKeyframeSent(NOW);
+
+		accel.x = 0.3f;
+		capture();
+		assertFalse(state.accelChanged());
+		// Measured from the value last sent, so small steps still add up
+		accel.x = 0.6f;
+		capture();
+		assertTrue(state.accelChanged());
+		state.markAccelSent();
+		capture();
+		assertFalse(state.accelChanged());
+	}
+
+	@Test
+	public void invertedAxesAreCompared() {
+		analogue = new AnalogueData(accel, null, 0, true, false);
+		capture();
+		state.markKeyframeSent(NOW);
+		accel.x = -DeltaState.DEFAULT_ACCEL_THRESHOLD * 2;
+		capture();
+		assertTrue(state.accelChanged());
+	}
+
+	@Test
+	public void heartbeatIsSentWhenNothingChanges() {
+		capture();
+		state.markKeyframeSent(NOW);
+		assertFalse(state.needsHeartbeat(NOW + DeltaState.HEARTBEAT_INTERVAL - 1));
+		assertTrue(state.needsHeartbeat(NOW + DeltaState.HEARTBEAT_INTERVAL));
+		state.markSent(NOW + DeltaState.HEARTBEAT_INTERVAL);
+		assertFalse(state.needsHeartbeat(NOW + DeltaState.HEARTBEAT_INTERVAL));
+	}
+}
@@ -0,0 +1,247 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package uk.digitalsquid.droidpad.serialise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.digitalsquid.droidpad.Vec3;
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import uk.digitalsquid.droidpad.buttons.Item;
+
+/**
+ * Decodes frames built by {@link FrameEncoder} to check their layout.
+ * @author william
+ *
+ */
+public class FrameEncoderTest {
+
+	private static final int[] ITEMS = {
+		Item.FLAG_BUTTON, 1, 0, 0,
+		Item.FLAG_SLIDER | Item.FLAG_HAS_Y_AXIS, 0, -300, 0,
+		Item.FLAG_TRACKPAD | Item.FLAG_HAS_X_AXIS | Item.FLAG_HAS_Y_AXIS, 70000, 12, 0,
+	};
+
+	private InputSnapshot snapshot;
+	private FrameEncoder encoder;
+	private AnalogueData analogue;
+
+	@Before
+	public void setUp() {
+		snapshot = new InputSnapshot();
+		encoder = new FrameEncoder();
+		analogue = new AnalogueData(new Vec3(1, 2, 3), null, 0, true, false);
+		analogue.setCaptureTime(5000L * 1000L * 1000L + 123456L);
+		publish(ITEMS);
+	}
+
+	private void publish(int[] values) {
+		snapshot.publish(values, values.length / InputSnapshot.VALUES_PER_ITEM);
+		snapshot.read();
+		encoder.setInput(snapshot);
+	}
+
+	private DataInputStream frame(int length) {
+		return new DataInputStream(new ByteArrayInputStream(encoder.getBuffer(), 0, length));
+	}
+
+	private static void assertMagic(String expected, DataInputStream in) throws IOException {
+		byte[] magic = new byte[4];
+		in.readFully(magic);
+		assertEquals(expected, new String(magic));
+	}
+
+	@Test
+	public void fullFrameHasHeaderThenItems() throws IOException {
+		final int length = encoder.encode(analogue);
+		assertEquals(BinarySerialiser.HEADER_SIZE + 3 * BinarySerialiser.ITEM_SIZE, length);
+
+		DataInputStream in = frame(length);
+		assertMagic("DPAD", in);
+		assertEquals(3, in.readInt());
+		assertEquals(BinarySerialiser.HEADER_FLAG_HAS_ACCEL, in.readInt());
+		// x is inverted
+		assertEquals(-1f, in.readFloat(), 0);
+		assertEquals(2f, in.readFloat(), 0);
+		assertEquals(3f, in.readFloat(), 0);
+		for(int i = 0; i < 4; i++) assertEquals(0f, in.readFloat(), 0);
+		// Timestamps are off until negotiated
+		for(int i = 0; i < 3; i++) assertEquals(0, in.readInt());
+		for(int value : ITEMS) assertEquals(value, in.readInt());
+		assertEquals(0, in.available());
+	}
+
+	@Test
+	public void timestampedFramesAreNumbered() throws IOException {
+		encoder.setSendTimestamps(true);
+		for(int sequence = 0; sequence < 2; sequence++) {
+			DataInputStream in = frame(encoder.encode(analogue));
+			in.skipBytes(8);
+			assertEquals(BinarySerialiser.HEADER_FLAG_HAS_ACCEL | BinarySerialiser.HEADER_FLAG_TIMESTAMPED,
+					in.readInt());
+			in.skipBytes(7 * 4);
+			assertEquals(sequence, in.readInt());
+			assertEquals(analogue.getCaptureTime() / 1000, in.readLong());
+		}
+	}
+
+	@Test
+	public void deltaFramesOnlyHoldChangedItems() throws IOException {
+		DeltaState state = new DeltaState();
+		// The first frame is a keyframe, the same as a full frame
+		int length = encoder.encodeDelta(analogue, state);
+		assertEquals(BinarySerialiser.HEADER_SIZE + 3 * BinarySerialiser.ITEM_SIZE, length);
+		DataInputStream in = frame(length);
+		in.skipBytes(8);
+		assertEquals(BinarySerialiser.HEADER_FLAG_HAS_ACCEL, in.readInt());
+
+		// Nothing has changed
+		assertEquals(0, encoder.encodeDelta(analogue, state));
+
+		int[] changed = ITEMS.clone();
+		changed[2 * 4 + 1] = 70001;
+		publish(changed);
+		length = encoder.encodeDelta(analogue, state);
+		assertEquals(BinarySerialiser.HEADER_SIZE + FrameEncoder.DELTA_ITEM_SIZE, length);
+		in = frame(length);
+		assertMagic("DPAD", in);
+		assertEquals(1, in.readInt());
+		assertEquals(BinarySerialiser.HEADER_FLAG_DELTA, in.readInt());
+		in.skipBytes(10 * 4);
+		assertEquals(2, in.readInt());
+		for(int i = 8; i < 12; i++) assertEquals(changed[i], in.readInt());
+	}
+
+	@Test
+	public void deltaFramesIncludeMovedSensors() throws IOException {
+		DeltaState state = new DeltaState();
+		encoder.encodeDelta(analogue, state);
+		analogue.getAccelerometer().z = 4;
+		final int length = encoder.encodeDelta(analogue, state);
+		assertEquals(BinarySerialiser.HEADER_SIZE, length);
+		DataInputStream in = frame(length);
+		in.skipBytes(4);
+		assertEquals(0, in.readInt());
+		assertEquals(BinarySerialiser.HEADER_FLAG_DELTA | BinarySerialiser.HEADER_FLAG_HAS_ACCEL, in.readInt());
+		assertEquals(-1f, in.readFloat(), 0);
+		assertEquals(2f, in.readFloat(), 0);
+		assertEquals(4f, in.readFloat(), 0);
+	}
+
+	@Test
+	public void requestedKeyframeIsSentInFull() {
+		DeltaState state = new DeltaState();
+		encoder.encodeDelta(analogue, state);
+		state.requestKeyframe();
+		assertEquals(BinarySerialiser.HEADER_SIZE + 3 * BinarySerialiser.ITEM_SIZE,
+				encoder.encodeDelta(analogue, state));
+	}
+
+	@Test
+	public void layoutDescriptionListsItemFlags() throws IOException {
+		assertTrue(encoder.layoutChanged());
+		byte[] description = encoder.createLayoutDescription();
+		assertFalse(encoder.layoutChanged());
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(description));
+		assertMagic("DLAY", in);
+		assertEquals(3, in.readInt());
+		for(int i = 0; i < 3; i++) assertEquals(ITEMS[i * 4], in.readInt());
+		assertEquals(0, in.available());
+
+		// Only the flags matter, not the values
+		int[] moved = ITEMS.clone();
+		moved[1] = 0;
+		publish(moved);
+		assertFalse(encoder.layoutChanged());
+		publish(new int[] { Item.FLAG_BUTTON, 0, 0, 0 });
+		assertTrue(encoder.layoutChanged());
+	}
+
+	@Test
+	public void compactFramePacksButtonsAndAxes() throws IOException {
+		encoder.createLayoutDescription();
+		final int length = encoder.encodeCompact(analogue);
+		assertEquals(4 + 2 + 2 + 4 + 3 * 4 + 1 + 3 * 2, length);
+
+		DataInputStream in = frame(length);
+		assertMagic("DPCK", in);
+		assertEquals(BinarySerialiser.HEADER_FLAG_HAS_ACCEL, in.readShort());
+		assertEquals(0, in.readShort());
+		assertEquals(0, in.readInt());
+		assertEquals(-1f, in.readFloat(), 0);
+		assertEquals(2f, in.readFloat(), 0);
+		assertEquals(3f, in.readFloat(), 0);
+		// The one button, pressed
+		assertEquals(1, in.readByte());
+		// The slider's y axis, then the trackpad's x (wrapped to 16 bits) and y
+		assertEquals(-300, in.readShort());
+		assertEquals((short)70000, in.readShort());
+		assertEquals(12, in.readShort());
+		assertEquals(0, in.available());
+	}
+
+	@Test
+	public void compactFrameButtonsFillWholeBytes() throws IOException {
+		int[] buttons = new int[9 * 4];
+		for(int i = 0; i < 9; i++) {
+			buttons[i * 4] = Item.FLAG_BUTTON;
+			buttons[i * 4 + 1] = i % 3 == 0 ? 1 : 0;
+		}
+		publish(buttons);
+		analogue = new AnalogueData(null, null, 0, false, false);
+		final int length = encoder.encodeCompact(analogue);
+		assertEquals(12 + 2, length);
+		DataInputStream in = frame(length);
+		in.skipBytes(12);
+		// Buttons 0, 3 and 6 are pressed; the ninth button starts a second byte
+		assertEquals(0x49, in.readUnsignedByte());
+		assertEquals(0, in.readUnsignedByte());
+	}
+
+	@Test
+	public void compactSlidersAreClamped() throws IOException {
+		publish(new int[] { Item.FLAG_SLIDER | Item.FLAG_HAS_X_AXIS, 40000, 0, 0 });
+		analogue = new AnalogueData(null, null, 0, false, false);
+		DataInputStream in = frame(encoder.encodeCompact(analogue));
+		in.skipBytes(12);
+		assertEquals(Short.MAX_VALUE, in.readShort());
+	}
+
+	@Test
+	public void timestampedCompactFramesAreNumbered() throws IOException {
+		encoder.setSendTimestamps(true);
+		for(int sequence = 0; sequence < 2; sequence++) {
+			DataInputStream in = frame(encoder.encodeCompact(analogue));
+			in.skipBytes(4);
+			assertEquals(BinarySerialiser.HEADER_FLAG_HAS_ACCEL | BinarySerialiser.HEADER_FLAG_TIMESTAMPED,
+					in.readShort());
+			assertEquals(sequence, in.readShort());
+			assertEquals((int)(analogue.getCaptureTime() / 1000), in.readInt());
+		}
+	}
+}
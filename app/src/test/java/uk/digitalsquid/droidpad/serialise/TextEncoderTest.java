@@ -0,0 +1,134 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.serialise;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import uk.digitalsquid.droidpad.Vec3;
+import uk.digitalsquid.droidpad.buttons.AnalogueData;
+import uk.digitalsquid.droidpad.buttons.Button;
+import uk.digitalsquid.droidpad.buttons.InputSnapshot;
+import uk.digitalsquid.droidpad.buttons.Item;
+import uk.digitalsquid.droidpad.buttons.Layout;
+import uk.digitalsquid.droidpad.buttons.Orientation;
+import uk.digitalsquid.droidpad.buttons.Slider;
+import uk.digitalsquid.droidpad.buttons.ToggleButton;
+import uk.digitalsquid.droidpad.buttons.TouchPanel;
+
+/**
+ * Checks that {@link TextEncoder} writes exactly what the old text protocol did.
+ * The expected lines are built the way the old serialiser built them, by String
+ * concatenation, with each item written as its old <code>getOutputString()</code> did.
+ * @author william
+ *
+ */
+public class TextEncoderTest {
+
+	private static final float[] VALUES = {
+		0f, -0f, 1.5f, -2.25f, 0.1f, -9.80665f, 1e-5f, 100f, 12345678f, 1e20f,
+		-Float.MAX_VALUE, Float.MIN_VALUE, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+	};
+
+	private final TextEncoder encoder = new TextEncoder();
+
+	/**
+	 * The old format: the accelerometer, then each item, separated by semicolons.
+	 */
+	private static String classic(float x, float y, float z, String... items) {
+		String data = "[{" + x + "," + y + "," + z + "}";
+		for(String item : items) {
+			data += ";";
+			data += item;
+		}
+		data += "]\n";
+		return data;
+	}
+
+	private String encode(AnalogueData analogue, Layout layout) {
+		InputSnapshot input = null;
+		if(layout != null) {
+			input = new InputSnapshot();
+			input.publish(layout);
+			input.read();
+		}
+		final int length = encoder.encode(analogue, input);
+		return new String(encoder.getBuffer(), 0, length);
+	}
+
+	private static AnalogueData analogue(float x, float y, float z, boolean invertX, boolean invertY) {
+		return new AnalogueData(new Vec3(x, y, z), new Vec3(), 0, invertX, invertY);
+	}
+
+	@Test
+	public void floatsMatchConcatenation() {
+		for(float x : VALUES) {
+			for(float y : VALUES) {
+				for(float z : VALUES) {
+					assertEquals(classic(x, y, z), encode(analogue(x, y, z, false, false), null));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void invertedAxesAreNegated() {
+		for(float v : VALUES) {
+			assertEquals(classic(-v, -v, v), encode(analogue(v, v, v, true, true), null));
+			assertEquals(classic(-v, v, v), encode(analogue(v, v, v, true, false), null));
+		}
+	}
+
+	@Test
+	public void buttons() {
+		Button pressed = new Button(0, 0, 1, 1, "a");
+		pressed.onMouseOn(null, 0, 0);
+		pressed.finaliseState();
+		ToggleButton toggled = new ToggleButton(0, 0, 1, 1, "c");
+		toggled.onMouseOff();
+		Layout layout = new Layout(new Item[] {
+				pressed, new Button(0, 0, 1, 1, "b"), toggled, new ToggleButton(0, 0, 1, 1, "d") });
+		assertEquals(classic(1.5f, -2.25f, 9.8f, "1", "0", "1", "0"),
+				encode(analogue(1.5f, -2.25f, 9.8f, false, false), layout));
+	}
+
+	@Test
+	public void slidersAndTouchPanels() {
+		Layout layout = new Layout();
+		for(Orientation orientation : new Orientation[] { Orientation.X, Orientation.Y, Orientation.Both }) {
+			Slider slider = new Slider(0, 0, 1, 1, orientation);
+			slider.ax = -512;
+			slider.ay = 1024;
+			layout.add(slider);
+			TouchPanel panel = new TouchPanel(0, 0, 1, 1, orientation);
+			panel.ax = Integer.MIN_VALUE;
+			panel.ay = Integer.MAX_VALUE;
+			layout.add(panel);
+		}
+		assertEquals(classic(0f, 0f, 0f,
+				"{S-512}", "{C" + Integer.MIN_VALUE + "}",
+				"{S1024}", "{C" + Integer.MAX_VALUE + "}",
+				"{A-512,1024}", "{T" + Integer.MIN_VALUE + "," + Integer.MAX_VALUE + "}"),
+				encode(analogue(0f, 0f, 0f, false, false), layout));
+	}
+
+	@Test
+	public void emptyLayout() {
+		assertEquals(classic(Float.NaN, 0.1f, -0f), encode(analogue(Float.NaN, 0.1f, -0f, false, false), new Layout()));
+	}
+}
@@ -0,0 +1,100 @@
+/*  This file is part of DroidPad.
+ *
+ *  DroidPad is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidPad is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidPad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.digitalsquid.droidpad.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link MemoryTransport} behaves like a non-blocking socket, so
+ * that sessions can be run over it.
+ * @author william
+ *
+ */
+public class MemoryTransportTest {
+
+	private static final long TIMEOUT = 1000;
+
+	@Test
+	public void passesDataBothWays() throws IOException {
+		MemoryTransport[] pair = MemoryTransport.createPair("computer");
+		assertArrayEquals("DPAD".getBytes(), transfer(pair[0], pair[1], "DPAD".getBytes()));
+		assertArrayEquals("DCMD".getBytes(), transfer(pair[1], pair[0], "DCMD".getBytes()));
+		assertNull(pair[0].getPeerAddress());
+		assertEquals("computer", pair[0].getPeerName());
+	}
+
+	@Test
+	public void closingEndsTheStream() throws IOException {
+		MemoryTransport[] pair = MemoryTransport.createPair("computer");
+		pair[0].close();
+		assertEquals(-1, pair[1].read(ByteBuffer.allocate(16)));
+	}
+
+	@Test
+	public void selectorReportsReadable() throws IOException {
+		MemoryTransport[] pair = MemoryTransport.createPair("computer");
+		Selector selector = Selector.open();
+		Object attachment = new Object();
+		pair[1].register(selector, attachment);
+		pair[0].write(ByteBuffer.wrap(new byte[] { 1 }));
+		assertEquals(1, selector.select(TIMEOUT));
+		SelectionKey key = selector.selectedKeys().iterator().next();
+		assertSame(attachment, key.attachment());
+		assertEquals(SelectionKey.OP_READ, key.readyOps());
+		selector.close();
+	}
+
+	@Test
+	public void serverAcceptsConnections() throws IOException {
+		MemoryTransportServer server = new MemoryTransportServer();
+		Selector selector = Selector.open();
+		Object attachment = new Object();
+		server.register(selector, attachment);
+		assertEquals(0, selector.selectNow());
+
+		MemoryTransport computer = server.connect("computer");
+		assertEquals(1, selector.select(TIMEOUT));
+		assertSame(attachment, selector.selectedKeys().iterator().next().attachment());
+		Transport device = server.accept();
+		assertNotNull(device);
+		assertNull(server.accept());
+		assertArrayEquals("DINF".getBytes(), transfer(device, computer, "DINF".getBytes()));
+
+		server.close();
+		selector.close();
+	}
+
+	private static byte[] transfer(Transport from, Transport to, byte[] data) throws IOException {
+		ByteBuffer src = ByteBuffer.wrap(data);
+		while(src.hasRemaining()) from.write(src);
+		ByteBuffer dest = ByteBuffer.allocate(data.length);
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		while(dest.hasRemaining() && System.currentTimeMillis() < end) to.read(dest);
+		return dest.array();
+	}
+}